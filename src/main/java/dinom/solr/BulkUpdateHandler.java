@@ -2,20 +2,41 @@ package dinom.solr;
 
 import static org.apache.solr.security.PermissionNameProvider.Name.UPDATE_PERM;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 
-import org.apache.lucene.document.Document;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
 import org.apache.solr.handler.RequestHandlerUtils;
+import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QParserPlugin;
@@ -25,11 +46,170 @@ import org.apache.solr.security.AuthorizationContext;
 import org.apache.solr.security.PermissionNameProvider;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorChain;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class BulkUpdateHandler extends RequestHandlerBase implements PermissionNameProvider {
+public class BulkUpdateHandler extends RequestHandlerBase implements SolrCoreAware, PermissionNameProvider {
+	private static Logger LOG = LoggerFactory.getLogger(BulkUpdateHandler.class);
+	
+	/**
+	 * Max number of registered jobs, the oldest finished ones are forgotten.
+	 */
+	static final int MAX_JOBS = 100;
+	/**
+	 * Max number of kept loaders, the least recently used one is dropped.
+	 */
+	static final int MAX_LOADERS = 16;
+	
+	private final LinkedHashMap<String, BulkUpdateJob> jobs = new LinkedHashMap<>();
+	/**
+	 * Loaders by stylesheet and xml field, kept so that their transformers are reused by following
+	 * requests. The stylesheet is taken from {@link StylesheetCache} on each request, so a changed
+	 * one is compiled again.
+	 */
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<String, XsltUpdateHandler.Loader> loaders = new LinkedHashMap<String, XsltUpdateHandler.Loader>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, XsltUpdateHandler.Loader> eldest) {
+			return size() > MAX_LOADERS;
+		}
+	};
+	private ExecutorService jobExecutor;
+	private boolean closed;
+	
+	@Override
+	public void inform(SolrCore core) {
+		core.addCloseHook(new CloseHook() {
+			@Override
+			public void preClose(SolrCore core) {
+				ExecutorService executor;
+				synchronized (jobs) {
+					closed = true;
+					for(BulkUpdateJob job : jobs.values()) job.cancel();
+					executor = jobExecutor;
+				}
+				// running jobs stop before next document, the core is closed after them
+				if(executor != null) ExecutorUtil.shutdownAndAwaitTermination(executor);
+			}
+			@Override
+			public void postClose(SolrCore core) {
+			}
+		});
+	}
 
 	@Override
 	public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+		SolrParams params = req.getParams();
+		
+		String jobId = params.get("job");
+		if(jobId != null) {
+			// status of asynchronous job, 'cancel=true' also cancels it
+			BulkUpdateJob job;
+			synchronized (jobs) {
+				job = jobs.get(jobId);
+			}
+			if(job == null) {
+				throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Unknown job: " + jobId);
+			}
+			if(params.getBool("cancel", false)) job.cancel();
+			rsp.add("job", job.getStatus());
+			return;
+		}
+		if(params.getBool("async", false)) {
+			rsp.add("job", submit(req).getStatus());
+			return;
+		}
+		run(req, rsp, new BulkUpdateJob(null));
+	}
+	
+	/**
+	 * Starts bulk update with the same parameters in background.
+	 * 
+	 * @return registered job, its id is used to ask for status.
+	 */
+	BulkUpdateJob submit(SolrQueryRequest req) {
+		ModifiableSolrParams params = new ModifiableSolrParams(req.getParams());
+		params.remove("async");
+		// ids list of the whole run is not kept by default
+		if(params.get("quiet") == null) params.set("quiet", true);
+		
+		SolrCore core = req.getCore();
+		BulkUpdateJob job = new BulkUpdateJob(UUID.randomUUID().toString());
+		
+		synchronized (jobs) {
+			if(closed) {
+				throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "Core is closing.");
+			}
+			if(jobExecutor == null) {
+				jobExecutor = ExecutorUtil.newMDCAwareFixedThreadPool(invariants == null ? 1 :
+						invariants.getInt("jobThreads", 1), new DefaultSolrThreadFactory("bulkUpdateJob"));
+			}
+			for(Iterator<BulkUpdateJob> itor = jobs.values().iterator(); jobs.size() >= MAX_JOBS && itor.hasNext(); ) {
+				BulkUpdateJob.State state = itor.next().getState();
+				if(state != BulkUpdateJob.State.QUEUED && state != BulkUpdateJob.State.RUNNING) itor.remove();
+			}
+			jobs.put(job.getId(), job);
+			synchronized (job) {
+				job.future = jobExecutor.submit(() -> runJob(core, params, job));
+			}
+		}
+		return job;
+	}
+	
+	private void runJob(SolrCore core, SolrParams params, BulkUpdateJob job) {
+		if(job.isCancelled()) {
+			job.finish(null);
+			return;
+		}
+		LocalSolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+		SolrQueryResponse rsp = new SolrQueryResponse();
+		SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+		try {
+			run(req, rsp, job);
+		}
+		catch(Throwable e) {
+			LOG.error("Bulk update job " + job.getId() + " failed", e);
+		}
+		finally {
+			SolrRequestInfo.clearRequestInfo();
+			req.close();
+		}
+	}
+	
+	/**
+	 * Runs bulk update, progress is reported to 'job'.
+	 */
+	void run(SolrQueryRequest req, SolrQueryResponse rsp, BulkUpdateJob job) throws Exception {
+		try {
+			update(req, rsp, job);
+		}
+		catch(Throwable e) {
+			// Errors too, the job must not stay running
+			job.finish(e);
+			throw e;
+		}
+		job.finish(null);
+	}
+	
+	private XsltUpdateHandler.Loader getLoader(SolrCore core, String xslt, String xmlField) {
+		String key = xslt + '\n' + xmlField;
+		XsltUpdateHandler.Loader loader;
+		synchronized (loaders) {
+			loader = loaders.get(key);
+			if(loader == null) {
+				loader = new XsltUpdateHandler.Loader(xmlField);
+				loader.init(invariants);
+				loader.setHtmlRules(invariants == null ? null : invariants.get("htmlRules"));
+				loaders.put(key, loader);
+			}
+		}
+		loader.compile(core, "xslt/"+xslt);
+		return loader;
+	}
+	
+	private void update(SolrQueryRequest req, SolrQueryResponse rsp, BulkUpdateJob job) throws Exception {
 		
 		String ukey = req.getCore().getLatestSchema().getUniqueKeyField().getName();
 		SolrParams params = req.getParams();
@@ -41,6 +221,12 @@ public class BulkUpdateHandler extends RequestHandlerBase implements PermissionN
 		ArrayList<String> track = params.getBool("quiet",false) ? null : new ArrayList<>();
 		boolean dryrun = params.getBool("dryrun", false);
 		String substr = params.get("contains");
+		byte[] substrBytes = substr == null ? null : substr.getBytes(StandardCharsets.UTF_8);
+		// documents with the same content hash as stored one are not updated, see ContentHashProcessor
+		String hashField = params.get("hashField");
+		// threads > 1 - documents are transformed by workers, see BulkUpdateWorkers
+		int threads = params.getInt("threads", 1);
+		int batchSize = params.getInt("batchSize", 100);
 		
 		ArrayList<Query> filters = new ArrayList<>();
 		ArrayList<String> fqs = new ArrayList<>();
@@ -69,77 +255,154 @@ public class BulkUpdateHandler extends RequestHandlerBase implements PermissionN
 	
 		SolrIndexSearcher searcher = req.getSearcher();
 		
-		XsltUpdateHandler.Loader loader = new XsltUpdateHandler.Loader(xmlField);
-		loader.init(invariants);
-		loader.compile(req.getCore(), "xslt/"+xslt);
+		XsltUpdateHandler.Loader loader = getLoader(req.getCore(), xslt, xmlField);
 		
 		SimpleOrderedMap<Object> oResp = new SimpleOrderedMap<>();
-		int numFound = 0;
 
-
-		DocIterator itor = searcher.getDocSet(filters).iterator();
+		// chunkSize > 0 - documents are processed in chunks sorted by unique key, starting
+		// after 'cursor' key, each chunk is committed (if commit is requested)
+		int chunkSize = params.getInt("chunkSize", 0);
+		String cursor = params.get("cursor");
+		long maxTime = params.getLong("maxTime", 0);
+		long t0 = System.currentTimeMillis();
+		boolean done = false;
+		
+		SchemaField keyField = req.getCore().getLatestSchema().getUniqueKeyField();
+		Sort byKey = chunkSize > 0 ? new Sort(keyField.getSortField(false)) : null;
+		// key that is not stored is read from docValues, chunks can not be resumed without it
+		Set<String> keyDocValues = keyField.stored() || !keyField.hasDocValues() ? null : Collections.singleton(ukey);
+		if(chunkSize > 0 && !keyField.stored() && keyDocValues == null) {
+			throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+					"chunkSize requires unique key '" + ukey + "' to be stored or to have docValues.");
+		}
+		
+		job.start(searcher.getDocSet(chunkSize > 0 ? after(filters, keyField, cursor) : filters).size());
+		job.cursor = cursor;
+		
 		Exception ex = null;
 		
 		UpdateRequestProcessorChain processorChain =
 		        req.getCore().getUpdateProcessorChain(params);
 		UpdateRequestProcessor processor = processorChain.createProcessor(req, rsp);
+		BulkUpdateWorkers workers = null;
+		ContentHashProcessor hashFilter = hashField == null ? null : new ContentHashProcessor(processor, hashField);
 		
 		try {
-			while(itor.hasNext()) {
+			while(!done && !job.isCancelled()) {
+				DocIterator itor;
+				int count = 0;
+				String lastId = null;
 				
-				Document doc = searcher.doc(itor.nextDoc());
-				String id = doc.get(ukey);
+				if(chunkSize > 0) {
+					itor = searcher.getDocList(new MatchAllDocsQuery(), after(filters, keyField, cursor),
+							byKey, 0, chunkSize, 0).iterator();
+				}
+				else {
+					itor = searcher.getDocSet(filters).iterator();
+				}
+				if(threads > 1) {
+					workers = new BulkUpdateWorkers(loader, req, processor, threads, batchSize, dryrun, job, track != null, hashField, false);
+				}
 				
-				if(id != null) {
-					String xml = doc.get(xmlField);
+				StoredXml doc = new StoredXml(ukey, xmlField, hashField);
+				while(itor.hasNext()) {
+					if(job.isCancelled()) break;
 					
-					if(xml == null) continue;
-					if(substr != null && !xml.contains(substr)) continue;
-
-					ContentStreamBase.ByteArrayStream bStream = new ContentStreamBase.ByteArrayStream(
-							xml.getBytes(StandardCharsets.UTF_8),
-							id,
-							"text/xml; charset=utf-8");
-					try {
-						if(!dryrun) {
-							loader.load(req, rsp, bStream, processor);
+					int docId = itor.nextDoc();
+					searcher.doc(docId, doc.reset());
+					String id = doc.id != null || keyDocValues == null ? doc.id : docValuesKey(searcher, docId, keyDocValues);
+					++count;
+					
+					if(id != null) {
+						lastId = id;
+						byte[] xml = doc.xml;
+						
+						if(xml == null || (substrBytes != null && Util.indexOf(xml, substrBytes) == -1)) {
+							job.skipped.incrementAndGet();
+							continue;
 						}
 						
-						++numFound;
-						if(track != null) track.add(id);
-						/*
-						if(numFound == 1) {
-							
-							SimpleOrderedMap<Object> map = new SimpleOrderedMap<>();
-							IndexSchema schema = req.getCore().getLatestSchema();
+						if(workers != null) {
+							if(!workers.submit(id, xml, doc.hash)) break;
+							continue;
+						}
+	
+						ContentStreamBase.ByteArrayStream bStream = new ContentStreamBase.ByteArrayStream(
+								xml,
+								id,
+								"text/xml; charset=utf-8");
+						try {
+							if(!dryrun) {
+								if(hashFilter != null) hashFilter.expect(doc.hash);
+								loader.load(req, rsp, bStream, hashFilter != null ? hashFilter : processor);
+								
+								if(hashFilter != null && hashFilter.isUnchanged()) {
+									job.skipped.incrementAndGet();
+									continue;
+								}
+							}
 							
-							for(IndexableField fl : doc) {
-								String name = fl.name();
-								SchemaField sfl = schema.getField(name);
+							job.processed.incrementAndGet();
+							if(track != null) track.add(id);
+							/*
+							if(numFound == 1) {
 								
-								Object val ;
-								if(sfl == null) val = fl.stringValue();
-								else val = sfl.getType().toObject(fl);
+								SimpleOrderedMap<Object> map = new SimpleOrderedMap<>();
+								IndexSchema schema = req.getCore().getLatestSchema();
 								
-								if(val == null) val = "???";
-								else if(val instanceof String && val.toString().length() > 64) {
-									val = val.toString().substring(0, 64)+"...";
+								for(IndexableField fl : doc) {
+									String name = fl.name();
+									SchemaField sfl = schema.getField(name);
+									
+									Object val ;
+									if(sfl == null) val = fl.stringValue();
+									else val = sfl.getType().toObject(fl);
+									
+									if(val == null) val = "???";
+									else if(val instanceof String && val.toString().length() > 64) {
+										val = val.toString().substring(0, 64)+"...";
+									}
+									map.add(fl.name(),val);
 								}
-								map.add(fl.name(),val);
-							}
-							rsp.add("example", map);
-						}*/
-					}
-					catch(Exception e) {
-						ex = new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Failure for "+id, e);
-						break;
+								rsp.add("example", map);
+							}*/
+						}
+						catch(Exception e) {
+							ex = new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Failure for "+id, e);
+							job.error(ex);
+							break;
+						}
 					}
+					else job.skipped.incrementAndGet();
+				}
+				if(workers != null) {
+					ex = workers.finish();
+					if(track != null) track.addAll(workers.getIds());
+					workers = null;
+				}
+				// cancelled chunk is not complete, so it is not committed as well
+				if(chunkSize == 0 || ex != null || job.isCancelled()) break;
+				
+				if(lastId == null && count == chunkSize) {
+					// the cursor would not move and the same chunk would be read again
+					throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+							"No document of the chunk after '" + cursor + "' has unique key '" + ukey + "'.");
 				}
+				// failed chunk is not committed, resume starts from its beginning
+				RequestHandlerUtils.handleCommit(req, processor, params, false);
+				if(lastId != null) job.cursor = cursor = lastId;
+				
+				job.done = done = count < chunkSize;
+				if(maxTime > 0 && System.currentTimeMillis() - t0 > maxTime) break;
 			}
-			oResp.add("numFound", numFound);
+			oResp.add("numFound", job.processed.get());
 			if(dryrun) {
 				oResp.add("dryrun", "true");
 			}
+			if(chunkSize > 0) {
+				oResp.add("cursor", cursor);
+				oResp.add("done", done);
+			}
 			if(track != null) {
 				oResp.add("ids",track);
 			}
@@ -147,9 +410,12 @@ public class BulkUpdateHandler extends RequestHandlerBase implements PermissionN
 			
 			if(ex != null) throw ex;
 			
-			RequestHandlerUtils.handleCommit(req, processor, params, false);
+			if(chunkSize == 0) {
+				RequestHandlerUtils.handleCommit(req, processor, params, false);
+			}
 
 		} finally {
+			if(workers != null) workers.close();
 
 			// finish the request
 			try {
@@ -164,6 +430,94 @@ public class BulkUpdateHandler extends RequestHandlerBase implements PermissionN
 		}
 	}
 	
+	/**
+	 * @return unique key of 'docId' read from docValues, as String ('null' if it has none).
+	 */
+	private static String docValuesKey(SolrIndexSearcher searcher, int docId, Set<String> keyField) throws IOException {
+		SolrDocument sdoc = new SolrDocument();
+		searcher.decorateDocValueFields(sdoc, docId, keyField);
+		Object v = sdoc.getFirstValue(keyField.iterator().next());
+		return v == null ? null : v instanceof Date ? ((Date)v).toInstant().toString() : v.toString();
+	}
+	
+	/**
+	 * Reads unique key, stored XML and content hash (if 'hashField' is set) of a document. XML is kept
+	 * as UTF-8 bytes the way it is stored, without decoding into String. Other fields are not read.
+	 * Numeric unique key is read as its decimal String.
+	 */
+	static class StoredXml extends StoredFieldVisitor {
+		final String keyField, xmlField, hashField;
+		String id, hash;
+		byte[] xml;
+		
+		StoredXml(String keyField, String xmlField, String hashField) {
+			this.keyField = keyField;
+			this.xmlField = xmlField;
+			this.hashField = hashField;
+		}
+		
+		StoredXml reset() {
+			id = null;
+			xml = null;
+			hash = null;
+			return this;
+		}
+		
+		@Override
+		public Status needsField(FieldInfo fieldInfo) throws IOException {
+			if(id != null && xml != null && (hashField == null || hash != null)) return Status.STOP;
+			String name = fieldInfo.name;
+			return (id == null && name.equals(keyField)) || (xml == null && name.equals(xmlField))
+					|| (hash == null && name.equals(hashField)) ? Status.YES : Status.NO;
+		}
+		
+		@Override
+		public void stringField(FieldInfo fieldInfo, byte[] value) throws IOException {
+			String name = fieldInfo.name;
+			if(name.equals(keyField)) {
+				if(id == null) id = new String(value, StandardCharsets.UTF_8);
+			}
+			else if(name.equals(xmlField)) {
+				if(xml == null) xml = value;
+			}
+			else if(hash == null) hash = new String(value, StandardCharsets.UTF_8);
+		}
+		
+		@Override
+		public void intField(FieldInfo fieldInfo, int value) throws IOException {
+			numericKey(fieldInfo, value);
+		}
+		
+		@Override
+		public void longField(FieldInfo fieldInfo, long value) throws IOException {
+			numericKey(fieldInfo, value);
+		}
+		
+		@Override
+		public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+			numericKey(fieldInfo, value);
+		}
+		
+		@Override
+		public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+			numericKey(fieldInfo, value);
+		}
+		
+		private void numericKey(FieldInfo fieldInfo, Number value) {
+			if(id == null && fieldInfo.name.equals(keyField)) id = value.toString();
+		}
+	}
+	
+	/**
+	 * @return filters with key range that starts after 'cursor' key (if specified).
+	 */
+	private static List<Query> after(List<Query> filters, SchemaField keyField, String cursor) {
+		if(cursor == null) return filters;
+		ArrayList<Query> lst = new ArrayList<>(filters);
+		lst.add(keyField.getType().getRangeQuery(null, keyField, cursor, null, false, true));
+		return lst;
+	}
+	
 	@Override
 	public PermissionNameProvider.Name getPermissionName(AuthorizationContext ctx) {
 		return UPDATE_PERM;
@@ -0,0 +1,130 @@
+package dinom.solr;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * <p>Progress of one {@link BulkUpdateHandler} run. Every run has it, asynchronous runs (jobs) are
+ * also registered by the handler, so their progress can be requested by id and they can be cancelled.</p>
+ *
+ * <p>Counters are updated by the thread that reads documents and by workers, status is read by
+ * other requests, so all fields are thread safe.</p>
+ *
+ * @author VF
+ */
+public class BulkUpdateJob {
+
+	public enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+	final String id;
+	final long created = System.currentTimeMillis();
+
+	final AtomicLong processed = new AtomicLong();
+	final AtomicLong skipped = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+
+	volatile State state = State.QUEUED;
+	volatile long total = -1;
+	volatile long started, finished;
+	volatile String lastError;
+	volatile String cursor;
+	volatile boolean done;
+	volatile boolean cancelled;
+
+	Future<?> future;
+
+	public BulkUpdateJob(String id) {
+		this.id = id;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	void start(long total) {
+		this.total = total;
+		started = System.currentTimeMillis();
+		state = State.RUNNING;
+	}
+
+	void finish(Throwable err) {
+		finished = System.currentTimeMillis();
+		if(err != null) lastError = describe(err);
+		state = err != null ? State.FAILED : cancelled ? State.CANCELLED : State.DONE;
+	}
+
+	/**
+	 * Counts failed document.
+	 */
+	void error(Throwable err) {
+		failed.incrementAndGet();
+		lastError = describe(err);
+	}
+
+	private static String describe(Throwable err) {
+		Throwable cause = err.getCause() != null ? err.getCause() : err;
+		return err.getMessage() + (cause == err ? "" : ": " + cause);
+	}
+
+	/**
+	 * Requests cancellation. Queued job is not started, running one stops before next document.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		if(state == State.QUEUED && future != null && future.cancel(false)) {
+			finished = System.currentTimeMillis();
+			state = State.CANCELLED;
+		}
+	}
+
+	/**
+	 * @return processed documents per second.
+	 */
+	public double getRate() {
+		long start = started;
+		if(start == 0) return 0;
+		long end = finished != 0 ? finished : System.currentTimeMillis();
+		return end > start ? processed.get() * 1000.0 / (end - start) : 0;
+	}
+
+	/**
+	 * @return estimated seconds to finish or -1 if unknown.
+	 */
+	public long getEta() {
+		if(state != State.RUNNING || total < 0) return -1;
+		double rate = getRate();
+		if(rate == 0) return -1;
+		long left = total - processed.get() - skipped.get() - failed.get();
+		return Math.max(0, (long)(left / rate));
+	}
+
+	public NamedList<Object> getStatus() {
+		NamedList<Object> status = new SimpleOrderedMap<>();
+		if(id != null) status.add("id", id);
+		status.add("state", state.name().toLowerCase());
+		if(total >= 0) status.add("total", total);
+		status.add("processed", processed.get());
+		status.add("skipped", skipped.get());
+		status.add("failed", failed.get());
+		status.add("docsPerSec", Math.round(getRate() * 10) / 10.0);
+		long eta = getEta();
+		if(eta >= 0) status.add("eta", eta);
+		if(started != 0) status.add("started", started);
+		if(finished != 0 && started != 0) status.add("elapsed", finished - started);
+		if(cursor != null) status.add("cursor", cursor);
+		if(finished != 0 && cursor != null) status.add("done", done);
+		if(lastError != null) status.add("lastError", lastError);
+		return status;
+	}
+}
@@ -0,0 +1,354 @@
+package dinom.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+
+/**
+ * <p>Parallel part of {@link BulkUpdateHandler}: request thread reads documents and submits their stored XML,
+ * worker threads transform it. Each worker has its own request context and so its own Transformer, created
+ * from shared Templates of the {@link XsltUpdateHandler.Loader}. Transformed documents are passed to
+ * the update processor chain of the request in batches, one worker at a time.</p>
+ *
+ * <p>The queue between reader and workers is bounded, so reading waits when workers are behind.</p>
+ *
+ * <p>If 'ordered', documents are added in submission order: a transformed document waits until all
+ * previous ones are added. The number of submitted but not added documents is limited, so a slow
+ * document does not make others pile up in memory.</p>
+ *
+ * <p>Documents are numbered in the order they are submitted. If some fail, the one with the lowest number
+ * is reported, and all documents before it are still processed, so the reported id does not depend
+ * on thread timing. Documents after the failed one are skipped and submission is stopped.</p>
+ *
+ * @author VF
+ */
+class BulkUpdateWorkers {
+
+	private static final Task END = new Task(Long.MAX_VALUE, null, null);
+
+	final XsltUpdateHandler.Loader loader;
+	final SolrQueryRequest req;
+	final UpdateRequestProcessor processor;
+	/**
+	 * Processor the documents are added to: 'processor' or its head that measures it (see {@link IngestMetrics}).
+	 */
+	final UpdateRequestProcessor target;
+	final int threads;
+	final int batchSize;
+	final boolean dryrun;
+	final BulkUpdateJob job;
+	final boolean keepIds;
+	final String hashField;
+	final boolean ordered;
+	/**
+	 * NOW of the reading thread's request, 'null' if it has no request info. Each worker has its
+	 * own request info with the same NOW, the caller's one is never shared.
+	 */
+	final Date now;
+
+	private final BlockingQueue<Task> queue;
+	private final ExecutorService pool;
+	private final ArrayList<Task> done = new ArrayList<>();
+	/**
+	 * Transformed documents waiting for previous ones (ordered mode), by seq.
+	 */
+	private final HashMap<Long, Task> completed = new HashMap<>();
+	private final Semaphore window;
+	private long nextSeq;
+
+	private long seq;
+	private volatile long failedSeq = Long.MAX_VALUE;
+	private Exception failure;
+	private boolean finished;
+
+	/**
+	 * Creates and starts workers.
+	 *
+	 * @param loader Loader, transforms stored XML.
+	 * @param req SolrQueryRequest, bulk update request, the one processor is created for.
+	 * @param processor UpdateRequestProcessor, chain the documents are added to.
+	 * @param threads an Integer, number of workers.
+	 * @param batchSize an Integer, number of documents a worker adds at once.
+	 * @param dryrun a Boolean, if true, documents are not transformed nor added.
+	 * @param job BulkUpdateJob, progress of the run.
+	 * @param keepIds a Boolean, if true, ids of processed documents are kept for {@link #getIds()}.
+	 * @param hashField a String, content hash field, if set unchanged documents are skipped.
+	 * @param ordered a Boolean, if true, documents are added in submission order.
+	 */
+	BulkUpdateWorkers(XsltUpdateHandler.Loader loader, SolrQueryRequest req, UpdateRequestProcessor processor,
+			int threads, int batchSize, boolean dryrun, BulkUpdateJob job, boolean keepIds,
+			String hashField, boolean ordered) {
+		this.loader = loader;
+		this.req = req;
+		this.processor = processor;
+		IngestMetrics m = loader.getMetrics();
+		this.target = m == null ? processor : m.new Chain(processor);
+		this.threads = threads;
+		this.batchSize = Math.max(1, batchSize);
+		this.dryrun = dryrun;
+		this.job = job;
+		this.keepIds = keepIds;
+		this.hashField = hashField;
+		this.ordered = ordered;
+		SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+		this.now = info == null ? null : info.getNOW();
+
+		queue = new ArrayBlockingQueue<>(threads * 4);
+		window = ordered ? new Semaphore(threads * 16) : null;
+		pool = ExecutorUtil.newMDCAwareFixedThreadPool(threads, new DefaultSolrThreadFactory("bulkUpdate"));
+		for(int i=0; i < threads; ++i) {
+			pool.execute(this::work);
+		}
+	}
+
+	/**
+	 * Passes document to workers, waits if the queue is full.
+	 *
+	 * @return false if a failure happened and documents should not be submitted anymore.
+	 */
+	boolean submit(String id, byte[] xml, String hash) throws InterruptedException {
+		return submit(id, xml, hash, "text/xml; charset=utf-8");
+	}
+
+	/**
+	 * @param contentType a String, content type of 'xml', without charset it is detected from the XML.
+	 */
+	boolean submit(String id, byte[] xml, String hash, String contentType) throws InterruptedException {
+		if(failedSeq != Long.MAX_VALUE) return false;
+		if(window != null) window.acquire();
+		Task t = new Task(seq++, id, xml);
+		t.hash = hash;
+		t.contentType = contentType;
+		queue.put(t);
+		return true;
+	}
+
+	/**
+	 * Waits until all submitted documents are processed and stops workers.
+	 *
+	 * @return the first (in submission order) failure or 'null'.
+	 */
+	Exception finish() throws InterruptedException {
+		if(!finished) {
+			finished = true;
+			for(int i=0; i < threads; ++i) queue.put(END);
+			pool.shutdown();
+			while(!pool.awaitTermination(1, TimeUnit.MINUTES));
+		}
+		synchronized (this) {
+			return failure;
+		}
+	}
+
+	/**
+	 * Stops workers without waiting, to be called when bulk update fails on reading side.
+	 */
+	void close() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * @return ids of successfully processed documents in submission order.
+	 */
+	List<String> getIds() {
+		ArrayList<Task> lst;
+		synchronized (processor) {
+			lst = new ArrayList<>(done);
+		}
+		lst.sort((a, b) -> Long.compare(a.seq, b.seq));
+		ArrayList<String> ids = new ArrayList<>(lst.size());
+		for(Task t : lst) ids.add(t.id);
+		return ids;
+	}
+
+	private void work() {
+		LocalSolrQueryRequest wreq = new LocalSolrQueryRequest(req.getCore(), req.getParams());
+		SolrQueryResponse wrsp = new SolrQueryResponse();
+		Capture capture = new Capture();
+		ContentHashProcessor hashFilter = hashField == null ? null : new ContentHashProcessor(capture, hashField);
+		ArrayList<Task> batch = new ArrayList<>(batchSize);
+		SolrRequestInfo info = new SolrRequestInfo(wreq, wrsp);
+		if(now != null) info.setNOW(now);
+		SolrRequestInfo.setRequestInfo(info);
+		try {
+			for(Task t; (t = queue.take()) != END; ) {
+				boolean add = false;
+				try {
+					add = t.seq <= failedSeq && transform(t, wreq, wrsp, capture, hashFilter);
+				}
+				catch(Error e) {
+					// the document fails, the worker goes on so the queue is drained
+					capture.take();
+					fail(t, e);
+				}
+				finally {
+					// releases the window permits, otherwise the reading thread would wait forever
+					if(ordered) complete(t, add);
+				}
+				if(!ordered && add) {
+					batch.add(t);
+					if(batch.size() >= batchSize) flush(batch);
+				}
+			}
+			flush(batch);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			SolrRequestInfo.clearRequestInfo();
+			wreq.close();
+		}
+	}
+
+	/**
+	 * @return true if the document is transformed and should be added.
+	 */
+	private boolean transform(Task t, SolrQueryRequest wreq, SolrQueryResponse wrsp, Capture capture,
+			ContentHashProcessor hashFilter) {
+		if(!dryrun) try {
+			ContentStreamBase.ByteArrayStream bStream = new ContentStreamBase.ByteArrayStream(
+					t.xml,
+					t.id,
+					t.contentType);
+			t.xml = null;
+			if(hashFilter != null) hashFilter.expect(t.hash);
+			loader.load(wreq, wrsp, bStream, hashFilter != null ? hashFilter : capture, false);
+			t.docs = capture.take();
+			t.unchanged = hashFilter != null && hashFilter.isUnchanged();
+		}
+		catch(Exception e) {
+			capture.take();
+			fail(t, e);
+			return false;
+		}
+		if(t.unchanged) {
+			job.skipped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Ordered mode: adds the document and following ones that are already transformed,
+	 * if all previous documents are added.
+	 */
+	private void complete(Task t, boolean add) {
+		synchronized (processor) {
+			if(!add) {
+				t.docs = null;
+				t.xml = null;
+			}
+			t.added = add;
+			completed.put(t.seq, t);
+
+			ArrayList<Task> ready = new ArrayList<>();
+			for(Task r; (r = completed.remove(nextSeq)) != null; ++nextSeq) {
+				if(r.added) ready.add(r);
+				window.release();
+			}
+			flush(ready);
+		}
+	}
+
+	private void flush(ArrayList<Task> batch) {
+		synchronized (processor) {
+			for(Task t : batch) {
+				if(t.seq > failedSeq) continue;
+				try {
+					if(t.docs != null) for(AddUpdateCommand c : t.docs) {
+						AddUpdateCommand cmd = new AddUpdateCommand(req);
+						cmd.solrDoc = c.solrDoc;
+						cmd.overwrite = c.overwrite;
+						cmd.commitWithin = c.commitWithin;
+						target.processAdd(cmd);
+					}
+					t.docs = null;
+					t.xml = null;
+					if(keepIds) done.add(t);
+					job.processed.incrementAndGet();
+				}
+				catch(Exception | Error e) {
+					fail(t, e);
+				}
+			}
+		}
+		batch.clear();
+	}
+
+	private synchronized void fail(Task t, Throwable e) {
+		SolrException err = new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Failure for "+t.id, e);
+		job.error(err);
+		if(t.seq < failedSeq) {
+			failedSeq = t.seq;
+			failure = err;
+		}
+	}
+
+	static class Task {
+		final long seq;
+		final String id;
+		byte[] xml;
+		String hash;
+		String contentType;
+		boolean unchanged;
+		boolean added;
+		List<AddUpdateCommand> docs;
+
+		Task(long seq, String id, byte[] xml) {
+			this.seq = seq;
+			this.id = id;
+			this.xml = xml;
+		}
+	}
+
+	/**
+	 * End of worker processor chain, keeps transformed documents to add them later in a batch.
+	 */
+	static class Capture extends UpdateRequestProcessor {
+		ArrayList<AddUpdateCommand> docs = new ArrayList<>(1);
+
+		Capture() {
+			super(null);
+		}
+
+		@Override
+		public void processAdd(AddUpdateCommand cmd) throws IOException {
+			AddUpdateCommand c = new AddUpdateCommand(cmd.getReq());
+			c.solrDoc = cmd.solrDoc;
+			c.overwrite = cmd.overwrite;
+			c.commitWithin = cmd.commitWithin;
+			docs.add(c);
+		}
+
+		@Override
+		public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+			throw new IOException("Only documents can be added in parallel bulk update.");
+		}
+
+		List<AddUpdateCommand> take() {
+			ArrayList<AddUpdateCommand> lst = docs;
+			docs = new ArrayList<>(1);
+			return lst;
+		}
+	}
+}
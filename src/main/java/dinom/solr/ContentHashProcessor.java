@@ -0,0 +1,114 @@
+package dinom.solr;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+
+/**
+ * <p>Puts hash of document content into 'hashField', so the next update of the document can tell
+ * whether its content is changed. The hash does not depend on field order and does not include
+ * 'hashField' itself.</p>
+ *
+ * <p>If expected hash is set (see {@link #expect(String)}) and the document has the same one,
+ * it is not passed to the next processor and {@link #isUnchanged()} is true. Used by
+ * {@link BulkUpdateHandler} to skip documents whose transformation gives the same result.</p>
+ *
+ * @author VF
+ */
+public class ContentHashProcessor extends UpdateRequestProcessor {
+
+	final String hashField;
+	private String expected;
+	private boolean unchanged;
+
+	public ContentHashProcessor(UpdateRequestProcessor next, String hashField) {
+		super(next);
+		this.hashField = hashField;
+	}
+
+	/**
+	 * @param hash a String, hash stored with the current version of next document, 'null' if unknown.
+	 */
+	public void expect(String hash) {
+		expected = hash;
+		unchanged = false;
+	}
+
+	/**
+	 * @return true if the last added document has expected hash and was not passed further.
+	 */
+	public boolean isUnchanged() {
+		return unchanged;
+	}
+
+	@Override
+	public void processAdd(AddUpdateCommand cmd) throws IOException {
+		String hash = hash(cmd.solrDoc, hashField);
+		unchanged = hash.equals(expected);
+		if(unchanged) return;
+
+		cmd.solrDoc.setField(hashField, hash);
+		super.processAdd(cmd);
+	}
+
+	/**
+	 * @param doc SolrInputDocument, document to get hash of.
+	 * @param exclude a String, name of field that is not included.
+	 *
+	 * @return MD5 of field names and values (hex).
+	 */
+	public static String hash(SolrInputDocument doc, String exclude) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(md, doc, exclude);
+
+		byte[] digest = md.digest();
+		StringBuilder out = new StringBuilder(digest.length * 2);
+		for(byte b : digest) {
+			out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return out.toString();
+	}
+
+	private static void update(MessageDigest md, SolrInputDocument doc, String exclude) {
+		String[] names = doc.getFieldNames().toArray(new String[0]);
+		Arrays.sort(names);
+
+		for(String name : names) {
+			if(name.equals(exclude)) continue;
+			SolrInputField fld = doc.getField(name);
+
+			md.update(name.getBytes(StandardCharsets.UTF_8));
+			md.update((byte)0);
+			Collection<Object> vals = fld.getValues();
+			if(vals != null) for(Object v : vals) {
+				// Date.toString depends on default time zone
+				String s = v instanceof Date ? Long.toString(((Date)v).getTime()) : String.valueOf(v);
+				md.update(s.getBytes(StandardCharsets.UTF_8));
+				md.update((byte)1);
+			}
+			md.update((byte)2);
+		}
+
+		List<SolrInputDocument> children = doc.getChildDocuments();
+		if(children != null) for(SolrInputDocument child : children) {
+			md.update((byte)3);
+			update(md, child, exclude);
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -15,10 +16,44 @@ import org.slf4j.LoggerFactory;
 public abstract class Conversion {
 	private static Logger LOG = LoggerFactory.getLogger(Conversion.class);
 	
+	/**
+	 * Rest of the chain, applied to the value before this conversion. Chains returned by {@link #parse(String)}
+	 * while a model is parsed are shared between models (see {@link TemplateCache}), they must not be modified.
+	 */
 	public Conversion next;
 	
 	public abstract Object apply(Object value);
 	
+	/**
+	 * Appends the result of conversion to the buffer. Same as appending <code>apply(value).toString()</code>,
+	 * but conversions that can do it, write the result directly, without intermediate String.
+	 * 
+	 * @param out StringBuilder, target buffer.
+	 * @param value an Object to convert.
+	 * 
+	 * @return false if conversion result is 'null', nothing is appended in this case.
+	 */
+	public boolean write(StringBuilder out, Object value) {
+		Object v = apply(value);
+		if(v == null) return false;
+		
+		append(out, v);
+		return true;
+	}
+	
+	protected static void append(StringBuilder out, Object v) {
+		if(v instanceof CharSequence) out.append((CharSequence)v);
+		else out.append(v.toString());
+	}
+	
+	/**
+	 * Writes the value converted by the rest of the chain ('next'), or the value itself if this is the last
+	 * conversion. Conversions that write, then post-process the appended text in the buffer.
+	 */
+	protected final boolean writeNext(StringBuilder out, Object value) {
+		return next != null ? next.write(out, value) : NONE.write(out, value);
+	}
+	
 	
 	public void setup(Map<String,String> props) {
 		// does nothing by default
@@ -29,6 +64,12 @@ public abstract class Conversion {
 		@Override
 		public Object apply(Object value) { return value; }
 		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			if(value == null) return false;
+			append(out, value);
+			return true;
+		}
 	};
 	
 	public static Conversion create(String name) {
@@ -59,6 +100,13 @@ public abstract class Conversion {
 		}
 	}
 	public static Conversion parse(String text) {
+		if(TemplateCache.isEnabled()) {
+			return TemplateCache.conversion(text, () -> parseChain(text));
+		}
+		return parseChain(text);
+	}
+	
+	private static Conversion parseChain(String text) {
 		int p = 0, i= 0, max = text.length();
 		 
 		Conversion root = null, last = null, tmp;
@@ -182,6 +230,13 @@ public abstract class Conversion {
 		public Object apply(Object value) {
 			return constVal;
 		}
+		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			if(constVal == null) return false;
+			append(out, constVal);
+			return true;
+		}
 	}
 	
 	public static class ToInt extends Conversion {
@@ -195,6 +250,18 @@ public abstract class Conversion {
 			}
 			return value;
 		}
+		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			if(next != null) {
+				value = next.apply(value);
+			}
+			if(value == null) return false;
+			
+			if(value instanceof Double) out.append(((Number)value).intValue());
+			else append(out, value);
+			return true;
+		}
 	}
 	public static class Lowercase extends Conversion {
 
@@ -203,7 +270,26 @@ public abstract class Conversion {
 			if(next != null) {
 				value = next.apply(value);
 			}
-			return value != null ? value.toString().toLowerCase() : null;
+			return value != null ? value.toString().toLowerCase(Locale.ROOT) : null;
+		}
+		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			int start = out.length();
+			if(!writeNext(out, value)) return false;
+			
+			for(int i=start, max = out.length(); i < max; ++i) {
+				char c = out.charAt(i);
+				if(c >= 128) {
+					// not ASCII, let String do it properly
+					String s = out.substring(start).toLowerCase(Locale.ROOT);
+					out.setLength(start);
+					out.append(s);
+					break;
+				}
+				if(c >= 'A' && c <= 'Z') out.setCharAt(i, (char)(c + 32));
+			}
+			return true;
 		}
 	}
 
@@ -214,7 +300,26 @@ public abstract class Conversion {
 			if(next != null) {
 				value = next.apply(value);
 			}
-			return value != null ? value.toString().toUpperCase() : null;
+			return value != null ? value.toString().toUpperCase(Locale.ROOT) : null;
+		}
+		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			int start = out.length();
+			if(!writeNext(out, value)) return false;
+			
+			for(int i=start, max = out.length(); i < max; ++i) {
+				char c = out.charAt(i);
+				if(c >= 128) {
+					// not ASCII, let String do it properly
+					String s = out.substring(start).toUpperCase(Locale.ROOT);
+					out.setLength(start);
+					out.append(s);
+					break;
+				}
+				if(c >= 'a' && c <= 'z') out.setCharAt(i, (char)(c - 32));
+			}
+			return true;
 		}
 	}
 	public static class Escape extends Conversion {
@@ -226,6 +331,51 @@ public abstract class Conversion {
 			}
 			return value != null ? ClientUtils.escapeQueryChars(value.toString()) : null;
 		}
+		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			if(next == null) {
+				if(value == null) return false;
+				escapeQueryChars(out, value.toString());
+				return true;
+			}
+			int start = out.length();
+			if(!next.write(out, value)) return false;
+			
+			// usually nothing to escape, then the text stays as written
+			for(int i=start, max = out.length(); i < max; ++i) {
+				if(isQueryChar(out.charAt(i))) {
+					String s = out.substring(start);
+					out.setLength(start);
+					escapeQueryChars(out, s);
+					break;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Same as {@link ClientUtils#escapeQueryChars(String)}, but appends to the buffer.
+		 */
+		public static void escapeQueryChars(StringBuilder out, String s) {
+			for(int i=0, max = s.length(); i < max; ++i) {
+				char c = s.charAt(i);
+				if (isQueryChar(c)) {
+					out.append('\\');
+				}
+				out.append(c);
+			}
+		}
+		
+		/**
+		 * @return true for characters that are part of the query syntax and must be escaped.
+		 */
+		static boolean isQueryChar(char c) {
+			return c == '\\' || c == '+' || c == '-' || c == '!'  || c == '(' || c == ')' || c == ':'
+				|| c == '^' || c == '[' || c == ']' || c == '\"' || c == '{' || c == '}' || c == '~'
+				|| c == '*' || c == '?' || c == '|' || c == '&'  || c == ';' || c == '/'
+				|| Character.isWhitespace(c);
+		}
 	}
 	public static class SolrDate extends Conversion {
 
@@ -240,6 +390,19 @@ public abstract class Conversion {
 			}
 			return solrDate;
 		}
+		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			// date is parsed from the String, so the rest of the chain is applied
+			if(next != null) value = next.apply(value);
+			if(value == null) return false;
+			
+			if(!Util.appendSolrDate(out, value.toString())) {
+				LOG.error("Invalid SOLR date: {}", value);
+				return false;
+			}
+			return true;
+		}
 	}	
 
 	public static class UTCString extends Conversion {
@@ -293,6 +456,40 @@ public abstract class Conversion {
 			}
 			return buf.toString();
 		}
+		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			if(value == null) return false;
+			
+			if(value instanceof List) {
+				List<?> vals = (List<?>) value;
+				for(int i=0, j=0, max = vals.size(); j < max; ++j) {
+					int mark = out.length();
+					
+					if(separator != null && i > 0) out.append(separator);
+					if(prefix != null) out.append(prefix);
+					
+					Object v = vals.get(j);
+					if(!writeNext(out, v)) {
+						out.setLength(mark);
+						continue;
+					}
+					if(postfix != null) out.append(postfix);
+					++i;
+				}
+			}
+			else {
+				int mark = out.length();
+				if(prefix != null) out.append(prefix);
+				
+				if(!writeNext(out, value)) {
+					out.setLength(mark);
+					return false;
+				}
+				if(postfix != null) out.append(postfix);
+			}
+			return true;
+		}
 
 		@Override
 		public void setup(Map<String, String> props) {
@@ -341,6 +538,18 @@ public abstract class Conversion {
 			return before+value.toString()+after;
 		}
 		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			int mark = out.length();
+			out.append(before);
+			if(!writeNext(out, value)) {
+				out.setLength(mark);
+				return false;
+			}
+			out.append(after);
+			return true;
+		}
+		
 		@Override
 		public void setup(Map<String, String> props) {
 			String v;
@@ -377,6 +586,32 @@ public abstract class Conversion {
 			}
 			return '"'+s+'"';
 		}
+		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			out.append('"');
+			int start = out.length();
+			if(!writeNext(out, value)) {
+				out.setLength(start - 1);
+				return false;
+			}
+			for(int i=start, max = out.length(); i < max; ++i) {
+				char c = out.charAt(i);
+				if(c == '"' || c == '\\') {
+					// rare, text is escaped again from a copy
+					String s = out.substring(i);
+					out.setLength(i);
+					for(int j=0; j < s.length(); ++j) {
+						c = s.charAt(j);
+						if(c == '"' || c == '\\') out.append('\\');
+						out.append(c);
+					}
+					break;
+				}
+			}
+			out.append('"');
+			return true;
+		}
 	}
 	public static class Default extends Conversion {
 		public Object value;
@@ -387,6 +622,15 @@ public abstract class Conversion {
 			
 			return value == null ? this.value : value;
 		}
+		
+		@Override
+		public boolean write(StringBuilder out, Object value) {
+			if(writeNext(out, value)) return true;
+			if(this.value == null) return false;
+			
+			append(out, this.value);
+			return true;
+		}
 
 		@Override
 		public void setup(Map<String, String> props) {
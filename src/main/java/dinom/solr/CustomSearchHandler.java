@@ -3,7 +3,18 @@ package dinom.solr;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -14,16 +25,22 @@ import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.PluginInfo;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.SearchHandler;
+import org.apache.solr.metrics.MetricsMap;
+import org.apache.solr.metrics.SolrMetricManager;
 import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequestBase;
 import org.apache.solr.response.ResultContext;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.servlet.HttpSolrCall;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 import org.noggit.JSONParser;
 import org.noggit.ObjectBuilder;
 import org.slf4j.Logger;
@@ -37,9 +54,47 @@ public class CustomSearchHandler extends SearchHandler {
 	private static Logger LOG = LoggerFactory.getLogger(CustomSearchHandler.class);
 
 	String pathToModel;
-	SearchModel model;
-	Throwable modelError;
+	/**
+	 * Current model. Replaced as a whole on reload, requests that already have a reference
+	 * continue with the model they started with.
+	 */
+	volatile SearchModel model;
+	volatile Throwable modelError;
 	String requestTraceHeader;
+	/**
+	 * If set, JSON body is parsed directly from request reader, see {@link #readJson(Reader, SearchModel)}.
+	 */
+	boolean streamJson;
+	/**
+	 * Translation cache, 'null' if 'translationCacheSize' is not set. Replaced by new
+	 * instance together with the model.
+	 */
+	volatile TranslationCache cache;
+	int cacheSize;
+	/**
+	 * How often (seconds) model file is checked for modification, 0 - never.
+	 */
+	int modelCheckInterval;
+	private ScheduledExecutorService modelWatcher;
+	/**
+	 * Serializes reloads, so a model parsed earlier is never published after a later one.
+	 */
+	private final Object reloadLock = new Object();
+	/**
+	 * If set, model can be reloaded by request parameter 'reloadModel=true'. Off by default, as the
+	 * handler is open to all search clients.
+	 */
+	boolean allowModelReload;
+	/**
+	 * Max number of threads for asynchronous sub-searches (see {@link dinom.solr.op.SearchOp}).
+	 */
+	int subSearchThreads;
+	/**
+	 * Max time (seconds) the model waits for an asynchronous sub-search.
+	 */
+	int subSearchTimeout;
+	private ExecutorService subSearchExecutor;
+	private boolean closed;
 
 	public SearchModel getSearchModel() {
 		return model;
@@ -54,6 +109,35 @@ public class CustomSearchHandler extends SearchHandler {
 			pathToModel = info.attributes.get("name").substring(1) + "-model.xml";
 		}
 		requestTraceHeader = invariants.get("requestTrackHeader");
+		streamJson = invariants.getBool("streamJson", false);
+		
+		cacheSize = invariants.getInt("translationCacheSize", 0);
+		if(cacheSize > 0) {
+			cache = new TranslationCache(cacheSize);
+		}
+		modelCheckInterval = invariants.getInt("modelCheckInterval", 0);
+		allowModelReload = invariants.getBool("allowModelReload", false);
+		subSearchThreads = invariants.getInt("subSearchThreads", 4);
+		subSearchTimeout = invariants.getInt("subSearchTimeout", 60);
+	}
+	
+	@Override
+	public void initializeMetrics(SolrMetricManager manager, String registryName, String scope) {
+		super.initializeMetrics(manager, registryName, scope);
+		
+		if(cache != null) {
+			manager.registerGauge(this, registryName, new MetricsMap((detailed, map) -> this.cache.getStats(map)),
+					true, "translationCache", getCategory().toString(), scope);
+		}
+		// caches belong to the model, so stats are taken from the current one
+		manager.registerGauge(this, registryName, new MetricsMap((detailed, map) -> {
+					SearchModel model = this.model;
+					if(model != null) for(SearchResultCache c : model.getSearchResultCaches()) c.getStats(map);
+				}), true, "subSearchCache", getCategory().toString(), scope);
+	}
+	
+	public TranslationCache getTranslationCache() {
+		return cache;
 	}
 
 	@Override
@@ -62,14 +146,148 @@ public class CustomSearchHandler extends SearchHandler {
 
 		//parse used query model
 		LOG.info("loading search model: {}", pathToModel);
-		try (InputStream is = core.getResourceLoader().openResource(pathToModel)) {
-
-			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
-			model = new SearchModel(doc);
+		try {
+			setSearchModel(loadModel(core));
 
 		} catch (Exception e) {
 			LOG.error("Failed to open and parse " + pathToModel, modelError = e);
 		}
+		
+		if(modelCheckInterval > 0) {
+			watchModel(core);
+		}
+		core.addCloseHook(new CloseHook() {
+			@Override
+			public void preClose(SolrCore core) {
+				synchronized (CustomSearchHandler.this) {
+					closed = true;
+					if(subSearchExecutor != null) {
+						// queued sub-searches are cancelled, so their waiting requests fail instead of hanging
+						for(Runnable r : subSearchExecutor.shutdownNow()) {
+							if(r instanceof Future) ((Future<?>)r).cancel(false);
+						}
+					}
+				}
+			}
+			@Override
+			public void postClose(SolrCore core) {
+			}
+		});
+	}
+
+	/**
+	 * Executor of asynchronous sub-searches, created on first use. The pool and its queue are
+	 * bounded, when both are full or the pool is already shut down the sub-search runs in the
+	 * calling thread.
+	 * 
+	 * @return ExecutorService or 'null' if async execution is disabled ('subSearchThreads' is 0)
+	 * or the core is closing.
+	 */
+	public synchronized ExecutorService getSubSearchExecutor() {
+		if(subSearchExecutor == null && subSearchThreads > 0 && !closed) {
+			// not CallerRunsPolicy, it discards the task after shutdown and the caller waits forever
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(subSearchThreads, subSearchThreads,
+					60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(subSearchThreads * 16),
+					new DefaultSolrThreadFactory("subSearch"), (r, executor) -> r.run());
+			pool.allowCoreThreadTimeOut(true);
+			subSearchExecutor = pool;
+		}
+		return subSearchExecutor;
+	}
+	
+	/**
+	 * @return max time (seconds) to wait for an asynchronous sub-search.
+	 */
+	public int getSubSearchTimeout() {
+		return subSearchTimeout;
+	}
+	
+	/**
+	 * Reads and parses the model file. Current model is not affected.
+	 * 
+	 * @param core SolrCore, the core model file is loaded for.
+	 * 
+	 * @return new SearchModel instance.
+	 * 
+	 * @throws Exception if model can not be read or it is not valid.
+	 */
+	protected SearchModel loadModel(SolrCore core) throws Exception {
+		try (InputStream is = core.getResourceLoader().openResource(pathToModel)) {
+
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
+			return new SearchModel(doc);
+		}
+	}
+	
+	/**
+	 * Publishes new model. Translation cache is replaced after the model, while requests read the
+	 * cache first and the model then. So translations made with previous model never get into the new cache.
+	 */
+	protected void setSearchModel(SearchModel newModel) {
+		model = newModel;
+		if(cacheSize > 0) {
+			cache = new TranslationCache(cacheSize);
+		}
+		modelError = null;
+	}
+	
+	/**
+	 * Parses model file again and if it is valid, replaces the current model.
+	 * 
+	 * @return null if model is replaced, otherwise the error why it is not.
+	 */
+	public Throwable reloadModel(SolrCore core) {
+		synchronized (reloadLock) {
+			LOG.info("reloading search model: {}", pathToModel);
+			try {
+				setSearchModel(loadModel(core));
+				return null;
+			}
+			catch(Exception e) {
+				LOG.error("Failed to reload " + pathToModel + ", previous model is kept.", e);
+				return e;
+			}
+		}
+	}
+	
+	/**
+	 * Starts background check of model file modification time. Works only if model is a local
+	 * file in configuration directory (not in ZooKeeper).
+	 */
+	private void watchModel(SolrCore core) {
+		Path path;
+		try {
+			path = Paths.get(core.getResourceLoader().getConfigDir(), pathToModel);
+		}
+		catch(Exception e) {
+			LOG.warn("Model file can not be watched: {} ({})", pathToModel, e.getMessage());
+			return;
+		}
+		if(!Files.isRegularFile(path)) {
+			LOG.warn("Model file can not be watched, not found in config directory: {}", path);
+			return;
+		}
+		
+		modelWatcher = Executors.newSingleThreadScheduledExecutor(new DefaultSolrThreadFactory("modelWatcher"));
+		long[] lastModified = {path.toFile().lastModified()};
+		
+		modelWatcher.scheduleWithFixedDelay(() -> {
+			long tm = path.toFile().lastModified();
+			// failed reload is tried again on next check
+			if(tm != lastModified[0] && reloadModel(core) == null) {
+				lastModified[0] = tm;
+			}
+		}, modelCheckInterval, modelCheckInterval, TimeUnit.SECONDS);
+		
+		core.addCloseHook(new CloseHook() {
+			@Override
+			public void preClose(SolrCore core) {
+				ExecutorUtil.shutdownAndAwaitTermination(modelWatcher);
+			}
+			@Override
+			public void postClose(SolrCore core) {
+			}
+		});
 	}
 
 	private String getRequestHeader(SolrQueryRequest req, String name){
@@ -109,6 +327,26 @@ public class CustomSearchHandler extends SearchHandler {
 
 		req.setParams(defaults); // temporary to use in case when error (e.g. wt=json)
 		long t0 = System.currentTimeMillis();
+		
+		if (req.getOriginalParams().getBool("reloadModel", false)) {
+			// admin command, model is reloaded without core reload
+			if (!allowModelReload) {
+				throw new SolrException(ErrorCode.FORBIDDEN, "Model reload is not enabled (allowModelReload).");
+			}
+			Throwable err = reloadModel(req.getCore());
+			NamedList<Object> status = new SimpleOrderedMap<>();
+			status.add("model", pathToModel);
+			status.add("reloaded", err == null);
+			if(err != null) {
+				status.add("error", err.getClass().getName() + ": " + err.getMessage());
+			}
+			rsp.add("reloadModel", status);
+			return;
+		}
+
+		// cache is read before model, see setSearchModel
+		TranslationCache cache = this.cache;
+		SearchModel model = this.model;
 
 		if (model == null) {
 			String msg = "Query Model is not defined.";
@@ -129,6 +367,12 @@ public class CustomSearchHandler extends SearchHandler {
 						"Bad contentType for search handler :" + contentType + " request=" + req);
 			}
 			try {
+				if(streamJson) {
+					((SolrQueryRequestBase) req).setContentStreams(null);
+					json = readJson(cs.getReader(), model);
+					if(LOG.isDebugEnabled()) LOG.debug("{}", json);
+					continue;
+				}
 				String jsonString = IOUtils.toString(cs.getReader());
 				LOG.info(jsonString);
 
@@ -158,24 +402,29 @@ public class CustomSearchHandler extends SearchHandler {
 
 
 
-		QueryBuilder xq;
-		try {
+		String cacheKey = cache == null ? null : TranslationCache.key(json);
+
+		QueryBuilder xq = cacheKey == null ? null : cache.get(cacheKey, this, req, rsp, json);
+		if (xq == null) try {
 			xq = new QueryBuilder(this, req, rsp).build(model, json);
+			
+			if(cacheKey != null && xq.isCacheable()) {
+				cache.put(cacheKey, xq);
+			}
 		}
 		catch(IllegalArgumentException e) {
 
 			throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage(), e);
 		}
+		// wait for asynchronous sub-searches, their exports go to response in model order
+		xq.joinPending();
 
 		req.setParams(xq);
 
 		super.handleRequest(req, rsp);
 
-		if (xq.getResponseHandler() != null) {
-
-			for (ResponseHandler handler = xq.getResponseHandler(); handler != null; handler = handler.next) {
-				handler.process(xq, rsp);
-			}
+		for (ResponseHandler handler : xq.getResponseHandlers()) {
+			handler.process(xq, rsp);
 		}
 		if (json.containsKey("debug")) {
 			rsp.getResponseHeader().add("params", xq);
@@ -194,6 +443,51 @@ public class CustomSearchHandler extends SearchHandler {
 		searchInfo(json, rsp);
 	}
 
+	/**
+	 * Reads JSON request object directly from the reader, without String copy of the whole
+	 * body. Top level keys are checked against the model as soon as they are parsed, so
+	 * undefined element is reported without reading the rest of the request.
+	 * 
+	 * @param reader Reader, request body.
+	 * @param model SearchModel, the model the request is built with.
+	 * 
+	 * @return top level JSON object, keys are in the order of the request.
+	 * 
+	 * @throws SolrException (BAD_REQUEST) if the body is not a single JSON object or has undefined elements.
+	 */
+	static Map<String,Object> readJson(Reader reader, SearchModel model) throws IOException {
+		try {
+			return readJson(new JSONParser(reader), model);
+		}
+		catch(JSONParser.ParseException e) {
+			throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
+		}
+	}
+	
+	private static Map<String,Object> readJson(JSONParser parser, SearchModel model) throws IOException {
+		if(parser.nextEvent() != JSONParser.OBJECT_START) {
+			throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "BAD JSON: {} object expected.");
+		}
+		ObjectBuilder builder = new ObjectBuilder(parser);
+		Map<String,Object> json = new LinkedHashMap<>();
+		
+		for(int ev; (ev = parser.nextEvent()) != JSONParser.OBJECT_END; ) {
+			if(ev != JSONParser.STRING) {
+				throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "BAD JSON: key expected.");
+			}
+			String key = parser.getString();
+			if(model.get(key) == null && !key.startsWith("__")) {
+				throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Undefined query element: " + key);
+			}
+			parser.nextEvent();
+			json.put(key, builder.getVal());
+		}
+		if(parser.nextEvent() != JSONParser.EOF) {
+			throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "BAD JSON: unexpected content after {} object.");
+		}
+		return json;
+	}
+
 	private static void toMap(SolrParams params, Map<String,Object> json) {
 		if(params == null || json == null) return;
 		
@@ -1,12 +1,30 @@
 package dinom.solr;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.BiConsumer;
 
+import javax.xml.transform.sax.SAXSource;
+
+import org.apache.commons.io.input.CharSequenceReader;
 import org.slf4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 
+/**
+ * Converts HTML into XML elements, either into DOM or as SAX events (see {@link #toSAXSource(CharSequence, String)}),
+ * so converted HTML can be transformed without building DOM.
+ */
 public class Html2Xml extends HtmlReader {
 	public static final int STYLE_KEEP = 1;
 	public static final int STYLE_IGNORE = 2;
@@ -14,6 +32,7 @@ public class Html2Xml extends HtmlReader {
 	
 	private URI baseUri;
     private StringBuilder buf = new StringBuilder();
+    private char[] chars = new char[256];
 
     private boolean copyClass = true;
     private int doStyle = STYLE_KEEP;
@@ -52,7 +71,6 @@ public class Html2Xml extends HtmlReader {
     	
     }
 	public void convert(String html, Element el, Document doc) {
-    	buf.delete(0, buf.length());
     	setText(html);
     	int p = 0, max = html.length();
     	
@@ -63,8 +81,7 @@ public class Html2Xml extends HtmlReader {
             }
             int ts = tag.getStart() - 1;
             if(p < ts) {
-                el.appendChild(doc.createTextNode(
-                		unescape(html.substring(p,ts))));
+                el.appendChild(doc.createTextNode(decode(html, p, ts)));
             }
             
             if(tag.isTag()) {
@@ -83,33 +100,122 @@ public class Html2Xml extends HtmlReader {
             	}
             }
 		}
-        if(p < max) {
-        	String s = html.substring(p);
-        	if(!s.trim().isEmpty()) {
-        		el.appendChild(doc.createTextNode(unescape(s)));
-        	}
+        if(p < max && !isBlank(p, max)) {
+        	el.appendChild(doc.createTextNode(decode(html, p, max)));
         }
 	}
 	
+	/**
+	 * Reports the same elements and text as {@link #convert(String, Element, Document)} creates, as SAX events
+	 * (without start and end of document). Column widths of tables are not reported, as table start is
+	 * reported before its cells are read.
+	 */
+	public void convert(CharSequence html, ContentHandler out) throws SAXException {
+		setText(html);
+		ArrayList<String> open = new ArrayList<>();
+		AttributesImpl attrs = new AttributesImpl();
+		BiConsumer<String, String> setter = (name, value) -> {
+			int idx = attrs.getIndex(name);
+			if(idx >= 0) attrs.setValue(idx, value);
+			else attrs.addAttribute("", name, name, "CDATA", value);
+		};
+		int p = 0, max = html.length();
+		
+		for(int i=0;; p=i) {
+			i = next(i, max);
+			if(i == -1) {
+				break;
+			}
+			int ts = tag.getStart() - 1;
+			if(p < ts) {
+				characters(html, p, ts, out);
+			}
+			
+			if(tag.isTag()) {
+				String tName = tag.getName().toLowerCase();
+				attrs.clear();
+				tag.doAttributes((key,val) -> addAttr(key, val, setter, null));
+				out.startElement("", tName, tName, attrs);
+				
+				if(inlineTags.contains(tName)) {
+					out.endElement("", tName, tName);
+				}
+				else {
+					open.add(tName);
+				}
+			}
+			else if (tag.isEndTag()) {
+				int last = open.size() - 1;
+				if(last >= 0 && open.get(last).equals(tag.getName().toLowerCase())) {
+					open.remove(last);
+					out.endElement("", tag.getName().toLowerCase(), tag.getName().toLowerCase());
+				}
+			}
+		}
+		if(p < max && !isBlank(p, max)) {
+			characters(html, p, max, out);
+		}
+		for(int k = open.size() - 1; k >= 0; --k) {
+			out.endElement("", open.get(k), open.get(k));
+		}
+	}
+	
+	/**
+	 * @param html a CharSequence, HTML to convert.
+	 * @param root a String, name of root element converted HTML is put into.
+	 * 
+	 * @return source for a Transformer, converted by this instance when transformed. The text is
+	 * converted as is, it is not copied into a String.
+	 */
+	public SAXSource toSAXSource(CharSequence html, String root) {
+		InputSource input = new InputSource(new CharSequenceReader(html));
+		return new SAXSource(new SAXReader(this, root, html, input), input);
+	}
+	
+	private String decode(CharSequence src, int start, int end) {
+		buf.setLength(0);
+		unescape(src, start, end, buf);
+		return buf.toString();
+	}
+	
+	private void characters(CharSequence src, int start, int end, ContentHandler out) throws SAXException {
+		buf.setLength(0);
+		unescape(src, start, end, buf);
+		int len = buf.length();
+		if(chars.length < len) {
+			chars = new char[Math.max(len, chars.length * 2)];
+		}
+		buf.getChars(0, len, chars, 0);
+		out.characters(chars, 0, len);
+	}
+	
 	private void addAttr(Element el, String name, String value) {
+		addAttr(name, value, el::setAttribute, el);
+	}
+	
+	/**
+	 * @param out BiConsumer, sets attribute of converted element.
+	 * @param el Element, converted element in DOM, 'null' if there is no DOM.
+	 */
+	private void addAttr(String name, String value, BiConsumer<String, String> out, Element el) {
 		switch(name) {
 
 		case "style":
-			addStyle(value,el); 
+			addStyle(value,out); 
 			break;
 		case "href":
-			addRef(value,el);
+			addRef(value,out);
 			break;
 		case "class":
 			if(copyClass) {
-				el.setAttribute("class", value);
+				out.accept("class", value);
 			}
 			break;
 		case "title": case "id":
-			el.setAttribute(name, value); // copy silently
+			out.accept(name, value); // copy silently
 			break;
 		case "name":
-			el.setAttribute("id", value); 
+			out.accept("id", value); 
 			break;
 		case "adhocenable":
 		case "valign":
@@ -117,11 +223,14 @@ public class Html2Xml extends HtmlReader {
 		case "height":
 			if(!value.endsWith("%")) {
 				if((value = toEm(value)) != null) {
-					el.setAttribute("height",value);
+					out.accept("height",value);
 				}
 			}
 			break;
 		case "width":
+			if(el == null) {
+				break;
+			}
 			Element tr = (Element)el.getParentNode();
 			if("tr".equals(tr.getTagName())){
 				Element tbl = (Element)tr.getParentNode().getParentNode();
@@ -140,7 +249,7 @@ public class Html2Xml extends HtmlReader {
 			break;
 		}
 	}
-    private void addRef(String value, Element el) {
+    private void addRef(String value, BiConsumer<String, String> el) {
     	
     	value = unescape(value);
     	
@@ -155,11 +264,11 @@ public class Html2Xml extends HtmlReader {
     			}
     		}
     	}
-    	el.setAttribute("href", value);
+    	el.accept("href", value);
     }
-    private void addStyle(String value, Element el) {
+    private void addStyle(String value, BiConsumer<String, String> el) {
     	if(doStyle == STYLE_KEEP) {
-    		el.setAttribute("style", value);
+    		el.accept("style", value);
     		return;
     	}
     	else if(doStyle == STYLE_IGNORE) {
@@ -178,7 +287,7 @@ public class Html2Xml extends HtmlReader {
 						continue;
 					}
 				} 					
-				el.setAttribute(cssName, cssValue);
+				el.accept(cssName, cssValue);
 			}
 		}
     }
@@ -195,4 +304,84 @@ public class Html2Xml extends HtmlReader {
     }
    
 
+	/**
+	 * XMLReader that converts HTML from input source (character stream, or byte stream in its encoding,
+	 * UTF-8 by default) and wraps it into root element. Features and properties are accepted, but
+	 * only content handler is used.
+	 */
+	public static class SAXReader extends XMLFilterImpl {
+		final Html2Xml converter;
+		final String root;
+		/**
+		 * HTML of {@link #source}, parsed directly when that source is passed to {@link #parse(InputSource)}.
+		 */
+		final CharSequence html;
+		final InputSource source;
+		private final HashMap<String, Boolean> features = new HashMap<>();
+
+		public SAXReader(Html2Xml converter, String root) {
+			this(converter, root, null, null);
+		}
+
+		SAXReader(Html2Xml converter, String root, CharSequence html, InputSource source) {
+			this.converter = converter;
+			this.root = root;
+			this.html = html;
+			this.source = source;
+		}
+
+		@Override
+		public boolean getFeature(String name) {
+			return Boolean.TRUE.equals(features.get(name));
+		}
+
+		@Override
+		public void setFeature(String name, boolean value) {
+			features.put(name, value);
+		}
+
+		@Override
+		public Object getProperty(String name) {
+			return null;
+		}
+
+		@Override
+		public void setProperty(String name, Object value) {
+		}
+
+		@Override
+		public void parse(InputSource input) throws SAXException, IOException {
+			if(input == source && html != null) {
+				convert(html);
+				return;
+			}
+			Reader in = input.getCharacterStream();
+			if(in == null && input.getByteStream() != null) {
+				String enc = input.getEncoding();
+				in = new InputStreamReader(input.getByteStream(), enc != null ? enc : "UTF-8");
+			}
+			if(in == null) {
+				throw new SAXException("HTML stream expected, system id is not supported.");
+			}
+			StringBuilder html = new StringBuilder(8192);
+			char[] cbuf = new char[8192];
+			for(int n; (n = in.read(cbuf)) != -1; ) {
+				html.append(cbuf, 0, n);
+			}
+			convert(html);
+		}
+
+		private void convert(CharSequence html) throws SAXException {
+			ContentHandler out = getContentHandler();
+			if(out == null) {
+				return;
+			}
+			out.startDocument();
+			out.startElement("", root, root, new AttributesImpl());
+			converter.convert(html, out);
+			out.endElement("", root, root);
+			out.endDocument();
+		}
+	}
+
 }
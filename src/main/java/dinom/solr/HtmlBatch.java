@@ -0,0 +1,165 @@
+package dinom.solr;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * <p>Processes many HTML documents in parallel on a fork-join pool. {@link HtmlReader} and {@link Html2Xml}
+ * keep parse state, so each task creates its own instance (a worker) and reuses it for all documents of
+ * its range. Ranges are split until they are small enough, so idle threads steal the rest.</p>
+ *
+ * <p>Results are returned in the order of documents.</p>
+ *
+ * @author VF
+ */
+public final class HtmlBatch {
+
+	/**
+	 * Maximum number of documents processed by one task without splitting.
+	 */
+	public static final int MAX_CHUNK = 64;
+
+	private HtmlBatch() {
+	}
+
+	/**
+	 * @return text of each document, see {@link HtmlReader#extractText(CharSequence)}.
+	 */
+	public static List<String> extractText(List<? extends CharSequence> htmls) {
+		return process(htmls, HtmlReader::new, HtmlReader::extractText, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param converters Supplier, creates configured converters, one per task.
+	 * @param root a String, name of root element of each converted document.
+	 *
+	 * @return XML of each document (without declaration), see {@link Html2Xml#toSAXSource(CharSequence, String)}.
+	 */
+	public static List<String> toXml(List<? extends CharSequence> htmls, Supplier<Html2Xml> converters,
+			String root, ForkJoinPool pool) {
+		// factory lookup is expensive, one is shared by the workers of the call
+		TransformerFactory factory = TransformerFactory.newInstance();
+		return process(htmls, () -> new XmlWorker(converters.get(), factory), (w, html) -> w.toXml(html, root), pool);
+	}
+
+	/**
+	 * @param htmls List of documents.
+	 * @param workers Supplier, creates worker state (e.g. a reader), called once per task.
+	 * @param op BiFunction, processes one document by the worker of the task.
+	 * @param pool ForkJoinPool to process on.
+	 *
+	 * @return results in the order of documents.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <W, R> List<R> process(List<? extends CharSequence> htmls, Supplier<W> workers,
+			BiFunction<W, CharSequence, R> op, ForkJoinPool pool) {
+		if(!(htmls instanceof RandomAccess)) {
+			htmls = new ArrayList<>(htmls);
+		}
+		int size = htmls.size();
+		Object[] results = new Object[size];
+		if(size > 0) {
+			int chunk = Math.max(1, Math.min(MAX_CHUNK, size / (pool.getParallelism() * 8)));
+			pool.invoke(new Chunk<>(htmls, 0, size, chunk, workers, op, results));
+		}
+		return (List<R>) Arrays.asList(results);
+	}
+
+	/**
+	 * Processes documents of a stream in batches of 'batchSize', only one batch is kept in memory.
+	 *
+	 * @param out Consumer, receives results in the order of documents.
+	 */
+	public static <W, R> void process(Iterator<? extends CharSequence> htmls, int batchSize, Supplier<W> workers,
+			BiFunction<W, CharSequence, R> op, ForkJoinPool pool, Consumer<? super R> out) {
+		ArrayList<CharSequence> batch = new ArrayList<>(batchSize);
+		while(htmls.hasNext()) {
+			batch.add(htmls.next());
+			if(batch.size() >= batchSize || !htmls.hasNext()) {
+				process(batch, workers, op, pool).forEach(out);
+				batch.clear();
+			}
+		}
+	}
+
+	private static class Chunk<W, R> extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final List<? extends CharSequence> htmls;
+		final int start, end, chunk;
+		final Supplier<W> workers;
+		final BiFunction<W, CharSequence, R> op;
+		final Object[] results;
+
+		Chunk(List<? extends CharSequence> htmls, int start, int end, int chunk, Supplier<W> workers,
+				BiFunction<W, CharSequence, R> op, Object[] results) {
+			this.htmls = htmls;
+			this.start = start;
+			this.end = end;
+			this.chunk = chunk;
+			this.workers = workers;
+			this.op = op;
+			this.results = results;
+		}
+
+		@Override
+		protected void compute() {
+			if(end - start <= chunk) {
+				W w = workers.get();
+				for(int i = start; i < end; ++i) {
+					results[i] = op.apply(w, htmls.get(i));
+				}
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(new Chunk<>(htmls, start, mid, chunk, workers, op, results),
+					new Chunk<>(htmls, mid, end, chunk, workers, op, results));
+		}
+	}
+
+	private static class XmlWorker {
+		final Html2Xml converter;
+		final Transformer serializer;
+
+		XmlWorker(Html2Xml converter, TransformerFactory factory) {
+			this.converter = converter;
+			// factory is not thread safe
+			try {
+				synchronized (factory) {
+					serializer = factory.newTransformer();
+				}
+			}
+			catch(TransformerException e) {
+				throw new IllegalStateException(e);
+			}
+			serializer.setOutputProperty(OutputKeys.METHOD, "xml");
+			serializer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+		}
+
+		String toXml(CharSequence html, String root) {
+			StringWriter out = new StringWriter(html.length());
+			try {
+				serializer.transform(converter.toSAXSource(html, root), new StreamResult(out));
+			}
+			catch(TransformerException e) {
+				throw new IllegalStateException("Failed to convert HTML", e);
+			}
+			return out.toString();
+		}
+	}
+}
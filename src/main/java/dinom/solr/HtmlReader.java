@@ -1,22 +1,54 @@
 package dinom.solr;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import org.apache.commons.lang3.text.translate.EntityArrays;
 
 
+/**
+ * Simple HTML tokenizer. Text is not copied: tag names are matched ignoring case in place,
+ * text runs are decoded into the output buffer directly. Boilerplate (navigation, footers,
+ * inline SVG etc.) can be skipped by {@link Rules}.
+ */
 public class HtmlReader {
 	
-    String text, lcaseText;
+    CharSequence text;
     protected TagInfo tag = new TagInfo();
     
     private boolean iCase=true;
+    private Rules rules;
+    /**
+     * Names of elements not closed yet (except void elements), its size is the depth of current element.
+     * End tag closes the nearest open element of its name and the ones inside it, stray end tags are
+     * ignored; elements with optional end tags are closed by start tags that imply it (see {@link #impliedEnds}).
+     * Kept only if rules limit the depth, see {@link #tracksDepth()}.
+     */
+    private final ArrayList<String> openTags = new ArrayList<>();
     
-    public void setText(String aText) {
+    public void setText(CharSequence aText) {
         text = aText;
-        lcaseText = iCase ? aText.toLowerCase() : aText;
+        openTags.clear();
+    }
+    
+    /**
+     * @param rules Rules, what to skip, 'null' to read everything.
+     * @return this instance
+     */
+    public HtmlReader setRules(Rules rules) {
+        this.rules = rules;
+        return this;
+    }
+    public Rules getRules() {
+        return rules;
     }
 
     public boolean ignoresCase() {
@@ -38,8 +70,8 @@ public class HtmlReader {
             char c = text.charAt(i);
             if(c == '!') {
                 // comments
-                if(text.startsWith("!--",i)) {
-                    j = text.indexOf("-->",i);
+                if(regionMatches(i, "!--")) {
+                    j = indexOf("-->",i);
                     if(j == -1 || j+3 > max) {
                         break;
                     }
@@ -48,7 +80,7 @@ public class HtmlReader {
                     return tag.end;
                 }
                 // rare type of comment, actually not officially legal, skip it.
-                j = text.indexOf(">",i+1);
+                j = indexOf('>',i+1);
                 if(j == -1 || j+1 > max) {
                     break;
                 }
@@ -57,12 +89,20 @@ public class HtmlReader {
                 return tag.end;
             }
             if(c == '/') {
-                j = text.indexOf('>', i+1);
+                j = indexOf('>', i+1);
                 if(j == -1 || j+1 > max) {
                     break;
                 }
-                tag.reset(lcaseText.substring(i+1,j), i, 2);
+                // name ends at white space, as in '</div >'
+                int ne = i+1;
+                while(ne < j && text.charAt(ne) > ' ') {
+                    ++ne;
+                }
+                tag.reset(iCase ? lowerCaseName(i+1,ne) : text.subSequence(i+1,ne).toString(), i, 2);
                 tag.end = j+1;
+                if(tracksDepth()) {
+                    close(tag.name);
+                }
                 return tag.end;
             }
             if(!Character.isLetter(c)) {
@@ -89,7 +129,7 @@ public class HtmlReader {
 			if(c <= 32 || c == '>' || c == '/') break; 
 			++p;
 		}
-		tag.reset(text.substring(i,p).toLowerCase(), i, 1);
+		tag.reset(lowerCaseName(i,p), i, 1);
 		if(c != '>'){
 			++p;
 		}
@@ -114,7 +154,7 @@ public class HtmlReader {
 				if(ne > ns){
 					tag.addAttr(ns, ne, p, i);
 				}
-				else if(!text.substring(p,i).trim().isEmpty()){
+				else if(!isBlank(p,i)){
 					tag.addAttr(p, i, i, i);
 				}
 				
@@ -127,7 +167,7 @@ public class HtmlReader {
 					p = i+1;
 					//beginAttr is set to true after =, to mark beginning of attr value.
 					beginAttr = true;
-					if(text.substring(ns,ne).trim().isEmpty()){
+					if(isBlank(ns,ne)){
 						ns = ne;
 					}
 				}
@@ -152,7 +192,7 @@ public class HtmlReader {
 				// white space
 				if(c <= 32 && stringType == 0 && ne > ns) {
 					// html attribute without quotes
-					if(!text.substring(p,i).trim().isEmpty()) {
+					if(!isBlank(p,i)) {
 						tag.addAttr(ns, ne, p, i);
 						ns = ne;
 						p = i+1;
@@ -171,17 +211,25 @@ public class HtmlReader {
      * as scripts and styles can be different from tag end.
      */
     protected int processTag() {
+        if(rules != null && !isVoid()) {
+            if(rules.maxDepth > 0) {
+                open(tag.name);
+            }
+            if(rules.skips(this)) {
+                return skipElement(tag.name, tag.end);
+            }
+        }
         int pp;
         switch(tag.name) {
         case "script":
-            pp = lcaseText.indexOf("</script>",tag.end);
+            pp = indexOf("</script>",tag.end);
             if(pp == -1) {
                 return text.length();
             } else {
                 return pp;
             }
         case "style":
-            pp = lcaseText.indexOf("</style>",tag.end);
+            pp = indexOf("</style>",tag.end);
             if(pp == -1) {
                 return text.length();
             } else {
@@ -192,11 +240,208 @@ public class HtmlReader {
         return tag.end;
     }
     
-    public String extractText(String html) {
-    	
-    	StringBuilder out = new StringBuilder();
+    private void open(String name) {
+        HashSet<String> closed = impliedEnds.get(name);
+        if(closed != null) {
+            for(int last = openTags.size() - 1; last >= 0 && closed.contains(openTags.get(last)); --last) {
+                openTags.remove(last);
+            }
+        }
+        openTags.add(name);
+    }
+    
+    private void close(String name) {
+        int i = openTags.lastIndexOf(name);
+        if(i != -1) {
+            openTags.subList(i, openTags.size()).clear();
+        }
+    }
+    
+    /**
+     * @return true if open elements are tracked, only 'maxDepth' rule needs them.
+     */
+    private boolean tracksDepth() {
+        return rules != null && rules.maxDepth > 0;
+    }
+    
+    /**
+     * @return number of open elements, including current one, 0 if they are not tracked.
+     */
+    protected int depth() {
+        return openTags.size();
+    }
+    
+    /**
+     * @return true if current tag has no content (void element or ends with '/&gt;').
+     */
+    protected boolean isVoid() {
+        return voidTags.contains(tag.name) || (tag.end >= 2 && tag.end <= text.length()
+                && text.charAt(tag.end-1) == '>' && text.charAt(tag.end-2) == '/');
+    }
+    
+    /**
+     * Finds end of element by scanning tag names only, attributes and text are not parsed. The element
+     * ends at its end tag, at a start tag that implies its end (see {@link #impliedEnds}) or at an end tag
+     * of an enclosing element. If open elements are not tracked, any end tag that matches no element open
+     * inside the skipped one is taken as the end of an enclosing element.
+     *
+     * @param name a String, lower case name of the element.
+     * @param from an Integer, position after start tag.
+     * @return position of the tag that ends the element, or text length if there is none.
+     */
+    protected int skipElement(String name, int from) {
+        // elements open inside the skipped one, the skipped one is the first
+        ArrayList<String> open = new ArrayList<>();
+        open.add(name);
+        int len = text.length();
+        for(int i = indexOf('<', from); i != -1 && i + 1 < len; i = indexOf('<', i + 1)) {
+            char c = text.charAt(i + 1);
+            if(c == '!' && regionMatches(i + 1, "!--")) {
+                int j = indexOf("-->", i + 4);
+                if(j == -1) {
+                    break;
+                }
+                i = j;
+                continue;
+            }
+            boolean end = c == '/';
+            if(!end && !Character.isLetter(c)) {
+                continue;
+            }
+            int ns = end ? i + 2 : i + 1, ne = ns;
+            while(ne < len && !isNameEnd(text.charAt(ne))) {
+                ++ne;
+            }
+            String tn = lowerCaseName(ns, ne);
+            if(end) {
+                int k = open.lastIndexOf(tn);
+                if(k == 0 || (k == -1 && (!tracksDepth() || openTags.contains(tn)))) {
+                    return i;
+                }
+                if(k > 0) {
+                    open.subList(k, open.size()).clear();
+                }
+                continue;
+            }
+            HashSet<String> closed = impliedEnds.get(tn);
+            if(closed != null) {
+                int last = open.size() - 1;
+                while(last >= 0 && closed.contains(open.get(last))) {
+                    --last;
+                }
+                if(last < 0) {
+                    return i;
+                }
+                open.subList(last + 1, open.size()).clear();
+            }
+            if(tn.equals("script") || tn.equals("style")) {
+                // their content may have anything that looks like tags
+                int j = indexOf("</" + tn, ne);
+                if(j == -1 || (j = indexOf('>', j)) == -1) {
+                    break;
+                }
+                i = j;
+                continue;
+            }
+            if(!voidTags.contains(tn) && (ne >= len || text.charAt(ne) != '/')) {
+                open.add(tn);
+            }
+        }
+        return len;
+    }
+    
+    private static boolean isNameEnd(char c) {
+        return c <= ' ' || c == '>' || c == '/';
+    }
+    
+    /**
+     * @return position of 'c' starting from 'from' or -1.
+     */
+    protected int indexOf(char c, int from) {
+        for(int n = text.length(); from < n; ++from) {
+            if(text.charAt(from) == c) {
+                return from;
+            }
+        }
+        return -1;
+    }
+    /**
+     * @param str a String in lower case, matched ignoring case if {@link #ignoresCase()}.
+     * @return position of 'str' starting from 'from' or -1.
+     */
+    protected int indexOf(String str, int from) {
+        char c0 = str.charAt(0);
+        for(int last = text.length() - str.length(); from <= last; ++from) {
+            if(text.charAt(from) == c0 && regionMatches(from, str)) {
+                return from;
+            }
+        }
+        return -1;
+    }
+    protected boolean regionMatches(int at, String str) {
+        return regionMatches(at, str, iCase);
+    }
+    /**
+     * @param str a String, if 'ignoreCase', it is matched in lower case.
+     */
+    protected boolean regionMatches(int at, String str, boolean ignoreCase) {
+        int n = str.length();
+        if(at + n > text.length()) {
+            return false;
+        }
+        for(int k=0; k < n; ++k) {
+            char a = text.charAt(at+k), b = str.charAt(k);
+            if(a != b && !(ignoreCase && Character.toLowerCase(a) == Character.toLowerCase(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * @return name between 'start' and 'end' in lower case, the shared instance if the name is known.
+     */
+    protected String lowerCaseName(int start, int end) {
+        String name = knownName(text, start, end);
+        return name != null ? name : text.subSequence(start, end).toString().toLowerCase();
+    }
+    /**
+     * @return true if there are only white space characters (as for String.trim()) between 'start' and 'end'.
+     */
+    protected boolean isBlank(int start, int end) {
+        for(; start < end; ++start) {
+            if(text.charAt(start) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public String extractText(CharSequence html) {
+    	StringBuilder out = new StringBuilder(html.length() / 2);
+    	extractText(html, out);
+    	return out.toString();
+    }
+    
+    /**
+     * Reads all characters of 'in' into a buffer, as tags and scripts may span any read, and extracts
+     * text from the buffer.
+     */
+    public String extractText(Reader in) throws IOException {
+    	StringBuilder buf = new StringBuilder(8192);
+    	char[] chars = new char[8192];
+    	for(int n; (n = in.read(chars)) != -1; ) {
+    		buf.append(chars, 0, n);
+    	}
+    	return extractText(buf);
+    }
+    
+    /**
+     * Appends text of 'html' (without tags, comments, scripts and styles, entities decoded) to 'out'.
+     */
+    public void extractText(CharSequence html, StringBuilder out) {
     	setText(html);
     	int p = 0, max = html.length();
+    	int limit = rules != null && rules.maxLength > 0 ? out.length() + rules.maxLength : Integer.MAX_VALUE;
     	
     	for(int i=0;; p=i) {
     		i = next(i, max);
@@ -205,17 +450,29 @@ public class HtmlReader {
             }
             int ts = tag.start - 1;
             if(p < ts) {
-            	out.append(
-            			unescape(html.substring(p,ts)));
+            	unescape(html, p, ts, out);
+            	if(out.length() >= limit) {
+            		truncate(out, limit);
+            		return;
+            	}
             }
     	}
     	if(p < max) {
-        	out.append(unescape(html.substring(p)));
+    		unescape(html, p, max, out);
+    	}
+    	truncate(out, limit);
+    }
+    
+    private static void truncate(StringBuilder out, int limit) {
+    	if(out.length() > limit) {
+    		// do not split surrogate pair
+    		out.setLength(Character.isHighSurrogate(out.charAt(limit - 1)) ? limit - 1 : limit);
     	}
-    	
-    	return out.toString();
     }
     
+    /**
+     * Tag, only offsets of its attributes are kept, names and values are read when requested.
+     */
 	public class TagInfo {
         /**
          * 0 - comment, 1 - start tag, 2 - end tag.
@@ -226,15 +483,12 @@ public class HtmlReader {
         private int[] attrs = new int[8];
         private int attrEnd;
 
-        private Map<String, Integer> indexMap = new HashMap<String,Integer>();
-
         public int size() {
             return attrEnd / 4;
         }
         public void reset(String name, int start, int type ) {
             this.start = start;
             this.name = name;
-            indexMap.clear();
             attrEnd = 0;
             this.type = type;
         }
@@ -259,27 +513,40 @@ public class HtmlReader {
                 System.arraycopy(attrs, 0, arr, 0, attrEnd);
                 attrs = arr;
             }
-            indexMap.put(text.substring(nameStart,nameEnd).trim().toLowerCase(), attrEnd);
             attrs[attrEnd++] = nameStart;
             attrs[attrEnd++] = nameEnd;
             attrs[attrEnd++] = valueStart;
             attrs[attrEnd++] = valueEnd;
         }
 
+        /**
+         * @param name a String, attribute name, matched ignoring case.
+         * @return trimmed value of the last attribute with the name, 'null' if there is none or it is empty.
+         */
         public String getAttr(String name) {
-            Integer idx = indexMap.get(name);
-            if(idx == null) {
-                return null;
+            for(int idx = attrEnd - 4; idx >= 0; idx -= 4) {
+                int ns = attrs[idx], ne = attrs[idx+1];
+                while(ns < ne && text.charAt(ns) <= ' ') ++ns;
+                while(ne > ns && text.charAt(ne-1) <= ' ') --ne;
+                if(ne - ns != name.length() || !regionMatches(ns, name, true)) {
+                    continue;
+                }
+                int vs = attrs[idx+2], ve = attrs[idx+3];
+                while(vs < ve && text.charAt(vs) <= ' ') ++vs;
+                while(ve > vs && text.charAt(ve-1) <= ' ') --ve;
+                return vs < ve ? text.subSequence(vs, ve).toString() : null;
             }
-            String value = text.substring(attrs[idx+2],attrs[idx+3]).trim();
-            return value.isEmpty() ? null : value;
+            return null;
         }
         public void doAttributes(BiConsumer<String, String> op) {
         	
         	for(int i=0; i < attrEnd; i+=4) {
         		
-        		String name = text.substring(attrs[i], attrs[i+1]).trim().toLowerCase();
-        		String value = text.substring(attrs[i+2], attrs[i+3]);
+        		int ns = attrs[i], ne = attrs[i+1];
+        		while(ns < ne && text.charAt(ns) <= ' ') ++ns;
+        		while(ne > ns && text.charAt(ne-1) <= ' ') --ne;
+        		String name = lowerCaseName(ns, ne);
+        		String value = text.subSequence(attrs[i+2], attrs[i+3]).toString();
         		if(!value.isEmpty()) {
         			char fc = value.charAt(0), lc = value.charAt(value.length()-1);
         			if((fc == '"' && lc == '"') || (fc == '\'' && lc=='\'')) {
@@ -293,10 +560,291 @@ public class HtmlReader {
 
     }
 
+	/**
+	 * Named entities (without '&amp;' and ';') of HTML 4, the same as StringEscapeUtils.unescapeHtml4 decodes.
+	 */
+	private static final HashMap<String, String> ENTITIES = new HashMap<>();
+	private static int maxEntity;
 	@SuppressWarnings("deprecation")
+	private static void addEntities() {
+		String[][][] tables = {EntityArrays.BASIC_UNESCAPE(), EntityArrays.ISO8859_1_UNESCAPE(),
+				EntityArrays.HTML40_EXTENDED_UNESCAPE()};
+		for(String[][] entities : tables) {
+			for(String[] e : entities) {
+				ENTITIES.putIfAbsent(e[0].substring(1, e[0].length()-1), e[1]);
+				maxEntity = Math.max(maxEntity, e[0].length());
+			}
+		}
+	}
+	static {
+		addEntities();
+	}
+
 	public static final String unescape(final String text) {
-		return org.apache.commons.lang3.StringEscapeUtils.unescapeHtml4(text);
+		if(text.indexOf('&') == -1) {
+			return text;
+		}
+		StringBuilder out = new StringBuilder(text.length());
+		unescape(text, 0, text.length(), out);
+		return out.toString();
+	}
+
+	/**
+	 * Appends characters of 'src' between 'start' and 'end' to 'out', decoding HTML 4 entities
+	 * (named ones and numeric ones ending with ';'). Unknown entities are copied as is.
+	 */
+	public static void unescape(CharSequence src, int start, int end, StringBuilder out) {
+		int p = start;
+		for(int i = start; i < end; ++i) {
+			if(src.charAt(i) != '&') {
+				continue;
+			}
+			int n = entity(src, i, end, out, p);
+			if(n > 0) {
+				p = i + n;
+				i = p - 1;
+			}
+		}
+		out.append(src, p, end);
 	}
+
+	/**
+	 * If there is an entity at 'i', appends text from 'p' to 'i' and the decoded entity to 'out'.
+	 *
+	 * @return length of the entity or 0 if there is none.
+	 */
+	private static int entity(CharSequence src, int i, int end, StringBuilder out, int p) {
+		if(i + 2 >= end) {
+			return 0;
+		}
+		int s = i + 1, e;
+		if(src.charAt(s) == '#') {
+			int radix = 10;
+			char c = src.charAt(++s);
+			if(c == 'x' || c == 'X') {
+				radix = 16;
+				++s;
+			}
+			int cp = 0;
+			for(e = s; e < end && (c = src.charAt(e)) != ';'; ++e) {
+				int d = Character.digit(c, radix);
+				if(d < 0 || (cp = cp * radix + d) > Character.MAX_CODE_POINT) {
+					return 0;
+				}
+			}
+			if(e == s || e == end) {
+				return 0;
+			}
+			out.append(src, p, i).appendCodePoint(cp);
+			return e + 1 - i;
+		}
+		int max = Math.min(end, i + maxEntity);
+		for(e = s; e < max && src.charAt(e) != ';'; ++e);
+		if(e == max) {
+			return 0;
+		}
+		String value = ENTITIES.get(src.subSequence(s, e).toString());
+		if(value == null) {
+			return 0;
+		}
+		out.append(src, p, i).append(value);
+		return e + 1 - i;
+	}
+    /**
+     * Names of HTML elements and common attributes, by length. Found names are shared instances,
+     * so most tags do not allocate their names.
+     */
+    private static final String[][] KNOWN_NAMES = new String[16][];
+    static {
+    	String[] names = {
+    		"a", "abbr", "address", "area", "article", "aside", "audio", "b", "base", "bdi", "bdo", "big",
+    		"blockquote", "body", "br", "button", "canvas", "caption", "center", "cite", "code", "col",
+    		"colgroup", "dd", "del", "details", "dfn", "div", "dl", "dt", "em", "embed", "fieldset",
+    		"figcaption", "figure", "font", "footer", "form", "frame", "h1", "h2", "h3", "h4", "h5", "h6",
+    		"head", "header", "hr", "html", "i", "iframe", "img", "input", "ins", "kbd", "label", "legend",
+    		"li", "link", "main", "map", "mark", "meta", "nav", "noscript", "object", "ol", "optgroup",
+    		"option", "p", "param", "pre", "q", "s", "samp", "script", "section", "select", "small",
+    		"source", "span", "strike", "strong", "style", "sub", "summary", "sup", "svg", "table",
+    		"tbody", "td", "textarea", "tfoot", "th", "thead", "time", "title", "tr", "tt", "u", "ul",
+    		"var", "video", "wbr",
+    		"align", "alt", "bgcolor", "border", "cellpadding", "cellspacing", "class", "color", "colspan",
+    		"content", "dir", "face", "height", "href", "id", "lang", "name", "rel", "rowspan", "size",
+    		"src", "target", "type", "valign", "value", "width"
+    	};
+    	for(String nm : names) {
+    		String[] arr = KNOWN_NAMES[nm.length()];
+    		arr = arr == null ? new String[1] : Arrays.copyOf(arr, arr.length + 1);
+    		arr[arr.length - 1] = nm;
+    		KNOWN_NAMES[nm.length()] = arr;
+    	}
+    }
+    
+    /**
+     * @return known name (in lower case) that is between 'start' and 'end' of 's' ignoring case, or 'null'.
+     */
+    static String knownName(CharSequence s, int start, int end) {
+    	int len = end - start;
+    	String[] names = len > 0 && len < KNOWN_NAMES.length ? KNOWN_NAMES[len] : null;
+    	if(names == null) {
+    		return null;
+    	}
+    	next:
+    	for(String nm : names) {
+    		for(int k=0; k < len; ++k) {
+    			if(Character.toLowerCase(s.charAt(start + k)) != nm.charAt(k)) {
+    				continue next;
+    			}
+    		}
+    		return nm;
+    	}
+    	return null;
+    }
+    
+    /**
+     * <p>What {@link HtmlReader} skips: elements by name, by 'class' or 'id' (regular expressions,
+     * found anywhere in the attribute value), elements deeper than 'maxDepth'; text extraction
+     * stops at 'maxLength' characters. Skipped elements are not parsed, only their end is found.</p>
+     *
+     * <p>Rules can be written as a String (e.g. a stylesheet parameter), see {@link #of(String)}.
+     * Rules are not modified after being configured, so they can be shared by readers.</p>
+     */
+    public static class Rules {
+        private static final ConcurrentHashMap<String, Rules> PARSED = new ConcurrentHashMap<>();
+        
+        final HashSet<String> tags = new HashSet<>();
+        Pattern classPattern, idPattern;
+        int maxLength, maxDepth;
+        
+        public Rules skipTags(String... names) {
+            for(String nm : names) {
+                if(!(nm = nm.trim()).isEmpty()) {
+                    tags.add(nm.toLowerCase());
+                }
+            }
+            return this;
+        }
+        public Rules skipClass(String regex) {
+            classPattern = Pattern.compile(regex);
+            return this;
+        }
+        public Rules skipId(String regex) {
+            idPattern = Pattern.compile(regex);
+            return this;
+        }
+        /**
+         * @param value an Integer, maximum length of extracted text, 0 - not limited.
+         */
+        public Rules maxLength(int value) {
+            maxLength = value;
+            return this;
+        }
+        /**
+         * @param value an Integer, elements nested deeper are skipped, 0 - not limited.
+         */
+        public Rules maxDepth(int value) {
+            maxDepth = value;
+            return this;
+        }
+        
+        boolean skips(HtmlReader reader) {
+            if(maxDepth > 0 && reader.depth() > maxDepth) {
+                return true;
+            }
+            TagInfo tag = reader.tag;
+            if(tags.contains(tag.getName())) {
+                return true;
+            }
+            String v;
+            if(classPattern != null && (v = tag.getAttr("class")) != null && classPattern.matcher(v).find()) {
+                return true;
+            }
+            return idPattern != null && (v = tag.getAttr("id")) != null && idPattern.matcher(v).find();
+        }
+        
+        /**
+         * @param spec a String, rules separated by ';': 'tags=nav,footer', 'class=regex', 'id=regex',
+         * 'maxLength=N', 'maxDepth=N'.
+         * @return parsed rules (the same instance for the same spec) or 'null' if spec is empty.
+         * @throws IllegalArgumentException if a rule is unknown or invalid.
+         */
+        public static Rules of(String spec) {
+            if(spec == null || spec.trim().isEmpty()) {
+                return null;
+            }
+            Rules rules = PARSED.get(spec);
+            if(rules == null) {
+                rules = parse(spec);
+                // specs come from configuration and stylesheets, there are few of them
+                if(PARSED.size() < 256) {
+                    PARSED.put(spec, rules);
+                }
+            }
+            return rules;
+        }
+        
+        private static Rules parse(String spec) {
+            Rules rules = new Rules();
+            for(String rule : spec.split(";")) {
+                if(rule.trim().isEmpty()) {
+                    continue;
+                }
+                int idx = rule.indexOf('=');
+                String name = idx == -1 ? rule.trim() : rule.substring(0, idx).trim();
+                String value = idx == -1 ? "" : rule.substring(idx + 1).trim();
+                try {
+                    switch(name) {
+                    case "tags":
+                        rules.skipTags(value.split(","));
+                        break;
+                    case "class":
+                        rules.skipClass(value);
+                        break;
+                    case "id":
+                        rules.skipId(value);
+                        break;
+                    case "maxLength":
+                        rules.maxLength(Integer.parseInt(value));
+                        break;
+                    case "maxDepth":
+                        rules.maxDepth(Integer.parseInt(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown HTML rule: " + rule);
+                    }
+                }
+                catch(PatternSyntaxException | NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid HTML rule: " + rule, e);
+                }
+            }
+            return rules;
+        }
+    }
+    
+    protected static HashSet<String> voidTags = new HashSet<String>(Arrays.asList(
+    		"area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param",
+    		"source", "track", "wbr"));
+    
+    /**
+     * Elements with optional end tag, by start tags that close them when open (innermost first).
+     */
+    protected static HashMap<String, HashSet<String>> impliedEnds = new HashMap<>();
+    static {
+    	HashSet<String> p = new HashSet<>(Arrays.asList("p"));
+    	for(String nm : new String[] {"p", "div", "ul", "ol", "dl", "table", "pre", "blockquote", "form",
+    			"h1", "h2", "h3", "h4", "h5", "h6", "section", "article", "header", "footer", "nav"}) {
+    		impliedEnds.put(nm, p);
+    	}
+    	impliedEnds.put("li", new HashSet<>(Arrays.asList("li", "p")));
+    	HashSet<String> dl = new HashSet<>(Arrays.asList("dt", "dd", "p"));
+    	impliedEnds.put("dt", dl);
+    	impliedEnds.put("dd", dl);
+    	impliedEnds.put("tr", new HashSet<>(Arrays.asList("tr", "td", "th")));
+    	HashSet<String> cell = new HashSet<>(Arrays.asList("td", "th"));
+    	impliedEnds.put("td", cell);
+    	impliedEnds.put("th", cell);
+    	impliedEnds.put("option", new HashSet<>(Arrays.asList("option")));
+    }
+    
     protected static HashSet<String> inlineTags = new HashSet<String>();
     static {
     	for(String nm : new String[] {"br","input", "embed","meta"}) {
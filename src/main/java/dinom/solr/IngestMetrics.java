@@ -0,0 +1,117 @@
+package dinom.solr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+/**
+ * <p>Ingest metrics of {@link XsltUpdateHandler}, registered in the handler scope:</p>
+ * <ul>
+ * <li>transformerAcquireTimes - taking a Transformer from the pool or creating it;</li>
+ * <li>transformTimes - parsing and transformation of posted XML, without the update chain;</li>
+ * <li>charsetDetectTimes - charset detection of posted XML kept in 'xmlField';</li>
+ * <li>updateChainTimes - the update chain, per document;</li>
+ * <li>docs, bytes - rates of added documents and read bytes;</li>
+ * <li>inputSizes, fieldCounts - sizes of posted streams and field counts of added documents.</li>
+ * </ul>
+ *
+ * @author VF
+ */
+class IngestMetrics {
+
+	final Timer acquireTimes, transformTimes, charsetTimes, chainTimes;
+	final Meter docs, bytes;
+	final Histogram inputSizes, fieldCounts;
+
+	IngestMetrics(SolrMetricManager manager, String registry, SolrInfoBean info, String... path) {
+		acquireTimes = manager.timer(info, registry, "transformerAcquireTimes", path);
+		transformTimes = manager.timer(info, registry, "transformTimes", path);
+		charsetTimes = manager.timer(info, registry, "charsetDetectTimes", path);
+		chainTimes = manager.timer(info, registry, "updateChainTimes", path);
+		docs = manager.meter(info, registry, "docs", path);
+		bytes = manager.meter(info, registry, "bytes", path);
+		inputSizes = manager.histogram(info, registry, "inputSizes", path);
+		fieldCounts = manager.histogram(info, registry, "fieldCounts", path);
+	}
+
+	static void time(Timer timer, long startNanos) {
+		timer.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stream that counts bytes read from the wrapped one.
+	 */
+	class Input extends ContentStreamBase {
+		final ContentStream stream;
+		CountingInputStream counter;
+
+		Input(ContentStream stream) {
+			this.stream = stream;
+			name = stream.getName();
+			contentType = stream.getContentType();
+			sourceInfo = stream.getSourceInfo();
+			size = stream.getSize();
+		}
+
+		@Override
+		public InputStream getStream() throws IOException {
+			return counter = new CountingInputStream(stream.getStream());
+		}
+
+		void done() {
+			long n = counter == null ? 0 : counter.getByteCount();
+			bytes.mark(n);
+			inputSizes.update(n);
+		}
+	}
+
+	/**
+	 * Head of the update chain, measures time spent in it.
+	 */
+	class Chain extends UpdateRequestProcessor {
+		long nanos;
+
+		Chain(UpdateRequestProcessor next) {
+			super(next);
+		}
+
+		@Override
+		public void processAdd(AddUpdateCommand cmd) throws IOException {
+			fieldCounts.update(cmd.solrDoc.size());
+			long t0 = System.nanoTime();
+			try {
+				super.processAdd(cmd);
+			}
+			finally {
+				long t = System.nanoTime() - t0;
+				nanos += t;
+				chainTimes.update(t, TimeUnit.NANOSECONDS);
+			}
+			docs.mark();
+		}
+
+		@Override
+		public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+			long t0 = System.nanoTime();
+			try {
+				super.processDelete(cmd);
+			}
+			finally {
+				nanos += System.nanoTime() - t0;
+			}
+		}
+	}
+}
@@ -52,7 +52,11 @@ public class QueryBuilder extends SolrQuery {
 	public Object currentValue;
 
 
-	ResponseHandler responseHandler;
+	/**
+	 * Response handlers of this request in processing order. Model handlers are shared by requests,
+	 * so they are collected here instead of being linked by their 'next' fields.
+	 */
+	ArrayList<ResponseHandler> responseHandlers = new ArrayList<>();
 
 	/**
 	 * JSON object (root) that is processed.
@@ -70,6 +74,20 @@ public class QueryBuilder extends SolrQuery {
 	
 	
 	ArrayList<FacetDecorator> facetDecorators;
+	
+	/**
+	 * false if translation depends on something else than JSON request (e.g. on results
+	 * of sub-searches), so the result can not be reused by {@link TranslationCache}.
+	 */
+	boolean cacheable = true;
+	/**
+	 * Actions to complete before the query is executed, e.g. joins of asynchronous sub-searches.
+	 */
+	ArrayList<Runnable> pending;
+	/**
+	 * Cancel actions of {@link #pending}, at the same positions ('null' if an action has none).
+	 */
+	ArrayList<Runnable> pendingCancels;
 
 	public QueryBuilder() {
 	}
@@ -85,21 +103,19 @@ public class QueryBuilder extends SolrQuery {
 	}
 	
 	/**
-	 * @return first handler in response handler chain.
+	 * @return response handlers in processing order, empty if there are none.
 	 */
-	public ResponseHandler getResponseHandler() {
-		return responseHandler;
+	public List<ResponseHandler> getResponseHandlers() {
+		return responseHandlers;
 	}
 	/**
-	 * Adds a handler on the top of handler chain. In this way, as handler
-	 * chain is single direction chain, model response handlers are not
-	 * modified.
+	 * Adds a handler on the top of handler list, it is processed before the ones added
+	 * earlier. The handler itself is not modified.
 	 * 
 	 * @param handler ResponseHandler to add.
 	 */
 	public void addResponseHandler(ResponseHandler handler) {
-		handler.next = this.responseHandler;
-		this.responseHandler = handler;
+		responseHandlers.add(0, handler);
 	}
 
 	
@@ -132,6 +148,59 @@ public class QueryBuilder extends SolrQuery {
 		}
 	}
 
+	/**
+	 * @return true if the query is built from JSON request only and can be reused for the same request.
+	 */
+	public boolean isCacheable() {
+		return cacheable;
+	}
+	/**
+	 * Operators that take data from somewhere else than JSON request (index, time, external
+	 * sources) should call it with 'false' to prevent caching of the translation.
+	 */
+	public void setCacheable(boolean cacheable) {
+		this.cacheable = cacheable;
+	}
+
+	/**
+	 * Adds an action that should be done before the built query is executed. Used by operators
+	 * that start work in background (see {@link dinom.solr.op.SearchOp}) to wait for its result.
+	 */
+	public void addPending(Runnable action) {
+		addPending(action, null);
+	}
+	/**
+	 * @param cancel Runnable, called instead of the action if an earlier one fails, to stop
+	 * the background work that is not needed any more.
+	 */
+	public void addPending(Runnable action, Runnable cancel) {
+		if(pending == null) {
+			pending = new ArrayList<>();
+			pendingCancels = new ArrayList<>();
+		}
+		pending.add(action);
+		pendingCancels.add(cancel);
+	}
+	/**
+	 * Runs pending actions in the order they were added and forgets them. If an action fails,
+	 * the rest are cancelled and the error is thrown.
+	 */
+	public void joinPending() {
+		if(pending == null) return;
+		ArrayList<Runnable> lst = pending, cancels = pendingCancels;
+		pending = pendingCancels = null;
+		int i = 0;
+		try {
+			for(; i < lst.size(); ++i) lst.get(i).run();
+		}
+		finally {
+			while(++i < lst.size()) {
+				Runnable c = cancels.get(i);
+				if(c != null) c.run();
+			}
+		}
+	}
+
 	public List<FacetDecorator> getFacetDecorators() {
 		return facetDecorators;
 	}
@@ -165,13 +234,13 @@ public class QueryBuilder extends SolrQuery {
 	public QueryBuilder build(SearchModel model, Map<String,Object> json) {
 
 		this.json = json;
-		this.responseHandler = null;
+		this.responseHandlers.clear();
 		
 		if(model.onopen != null) {
 			model.onopen.apply(this, json);
 		}
-		for (Map.Entry<?, ?> e : json.entrySet()) {
-			String key = e.getKey().toString();
+		for (Map.Entry<String, Object> e : json.entrySet()) {
+			String key = e.getKey();
 
 			SolrQueryOperator op = model.get(key);
 			if (op == null) {
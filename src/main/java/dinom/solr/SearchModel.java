@@ -1,6 +1,9 @@
 package dinom.solr;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -42,10 +45,20 @@ import dinom.solr.op.*;
 public class SearchModel {
 	private static Logger LOG = LoggerFactory.getLogger(SearchModel.class);
 	
+	/**
+	 * Sub-search caches created while the top level model is parsed by current thread.
+	 */
+	private static final ThreadLocal<List<SearchResultCache>> PARSED_CACHES = new ThreadLocal<>();
+	
 
 	Element root;
 	Map<String, SolrQueryOperator> model; 
 	
+	/**
+	 * Sub-search result caches of this model and its nested models, empty for nested models.
+	 */
+	List<SearchResultCache> caches = Collections.emptyList();
+	
 	/**
 	 * '_open_' block if any. 'null' is passed as 'value' argument in 
 	 * {@link SolrQueryOperator#apply(SolrQueryBuilder, Object) apply} method call.
@@ -65,7 +78,7 @@ public class SearchModel {
 	}
 	
 	public SearchModel(Element root) {
-		model = new HashMap<>();
+		model = new LinkedHashMap<>();
 		parse(root);
 	}
 	
@@ -73,7 +86,8 @@ public class SearchModel {
 	public SearchModel(SearchModel proto) {
 		onopen = proto.onopen;
 		onclose = proto.onclose;
-		model = new HashMap<>(proto.model);
+		model = new LinkedHashMap<>(proto.model);
+		caches = proto.caches;
 		
 		// responseHandler is discarded.
 	}
@@ -81,6 +95,21 @@ public class SearchModel {
 	public void parse(Element root) {
 		this.root = root;
 		
+		// templates and conversions are shared with other models
+		Boolean oldCache = TemplateCache.setEnabled(true);
+		// sub-search caches of nested models are reported by the top level one
+		List<SearchResultCache> outer = PARSED_CACHES.get();
+		if(outer == null) PARSED_CACHES.set(caches = new ArrayList<>());
+		try {
+			parseChildren(root);
+		}
+		finally {
+			TemplateCache.setEnabled(oldCache);
+			if(outer == null) PARSED_CACHES.remove();
+		}
+	}
+	
+	private void parseChildren(Element root) {
 		NodeList nodes = root.getChildNodes();
 		
 		for(int i=0; i < nodes.getLength(); ++i) {
@@ -116,6 +145,39 @@ public class SearchModel {
 		}
 	}
 	
+	/**
+	 * Creates sub-search result cache that belongs to the model being parsed by current thread.
+	 * 
+	 * @param name a String, cache name, made unique within the model by a numeric suffix if needed.
+	 * @param maxSize an Integer, max number of cached results.
+	 * 
+	 * @return new SearchResultCache.
+	 */
+	public static SearchResultCache newCache(String name, int maxSize) {
+		List<SearchResultCache> lst = PARSED_CACHES.get();
+		String unique = name;
+		if(lst != null) {
+			for(int n = 2; ; ++n) {
+				boolean found = false;
+				for(SearchResultCache c : lst) {
+					if(c.getName().equals(unique)) found = true;
+				}
+				if(!found) break;
+				unique = name + n;
+			}
+		}
+		SearchResultCache cache = new SearchResultCache(unique, maxSize);
+		if(lst != null) lst.add(cache);
+		return cache;
+	}
+	
+	/**
+	 * @return sub-search result caches of the model and its nested models.
+	 */
+	public List<SearchResultCache> getSearchResultCaches() {
+		return caches;
+	}
+	
 	/**
 	 * Get the operator that should be applied to convert JSON query parameter into corresponding
 	 * SolrQuery parameters.
@@ -0,0 +1,149 @@
+package dinom.solr;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * <p>Bounded LRU cache of sub-search results (see {@link dinom.solr.op.SearchOp}). The key is rendered
+ * sub-query (JSON and 'params'), the value is what the sub-search exports and collects.</p>
+ *
+ * <p>Results are valid for one index searcher only. The cache remembers the searcher its entries were
+ * produced by and is cleared when it is asked for a different one, i.e. when a new searcher is opened.
+ * The searcher is weakly referenced, so the cache does not keep closed searcher in memory.</p>
+ *
+ * @author VF
+ */
+public class SearchResultCache {
+
+	private final String name;
+	private final int maxSize;
+	private final LinkedHashMap<String, Entry> map;
+	private WeakReference<Object> searcher = new WeakReference<>(null);
+
+	private long hits, misses, evictions, invalidations;
+
+	public SearchResultCache(String name, int maxSize) {
+		this.name = name;
+		this.maxSize = maxSize;
+		this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if(size() > SearchResultCache.this.maxSize) {
+					++evictions;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param key a String, rendered sub-query.
+	 * @param searcher the searcher the sub-search would be executed with.
+	 *
+	 * @return cached result or 'null' if there is none for the key and the searcher.
+	 */
+	public synchronized Entry get(String key, Object searcher) {
+		checkSearcher(searcher);
+		Entry e = map.get(key);
+		if(e == null) ++misses;
+		else ++hits;
+		return e;
+	}
+
+	/**
+	 * Puts sub-search result into the cache, unless the searcher it was produced by is no longer the current one.
+	 */
+	public synchronized void put(String key, Object searcher, NamedList<?> result, Object collected) {
+		Object current = this.searcher.get();
+		if(current != null && current != searcher) return;
+		checkSearcher(searcher);
+		map.put(key, new Entry(result, collected));
+	}
+
+	private void checkSearcher(Object searcher) {
+		if(this.searcher.get() != searcher) {
+			if(!map.isEmpty()) {
+				map.clear();
+				++invalidations;
+			}
+			this.searcher = new WeakReference<>(searcher);
+		}
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * Puts cache statistics into the map, names are prefixed by the cache name.
+	 */
+	public synchronized void getStats(Map<String,Object> stats) {
+		String p = name + ".";
+		stats.put(p + "size", map.size());
+		stats.put(p + "maxSize", maxSize);
+		stats.put(p + "hits", hits);
+		stats.put(p + "misses", misses);
+		stats.put(p + "evictions", evictions);
+		stats.put(p + "invalidations", invalidations);
+		long lookups = hits + misses;
+		stats.put(p + "hitratio", lookups == 0 ? 0.0 : ((double)hits) / lookups);
+	}
+
+	/**
+	 * Sub-search result, shared by requests and never modified.
+	 */
+	public static class Entry {
+		final NamedList<?> result;
+		final Object collected;
+
+		Entry(NamedList<?> result, Object collected) {
+			this.result = result;
+			this.collected = collected;
+		}
+
+		public NamedList<?> getResult() {
+			return result;
+		}
+
+		/**
+		 * @return values collected from the result documents, 'null' if the search does not collect.
+		 */
+		public Object getCollected() {
+			return collected;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package dinom.solr;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.solr.common.util.XMLErrorLogger;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.util.SystemIdResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Compiled stylesheets shared by all handlers of a core ({@link XsltUpdateHandler}, {@link BulkUpdateHandler}).
+ * Entries are kept per resource loader, as stylesheets may use extension classes loaded by it, and are
+ * dropped when the core is closed (e.g. on reload).</p>
+ *
+ * <p>If a stylesheet is a local file in configuration directory, its modification time is checked on
+ * each request, so changed file is compiled again. Stylesheets from ZooKeeper are compiled once per
+ * core load.</p>
+ *
+ * @author VF
+ */
+public final class StylesheetCache {
+	private static Logger LOG = LoggerFactory.getLogger(StylesheetCache.class);
+
+	private static final HashMap<SolrResourceLoader, ConcurrentHashMap<String, Entry>> cores = new HashMap<>();
+
+	private StylesheetCache() {
+	}
+
+	/**
+	 * @param core SolrCore, the core stylesheet belongs to.
+	 * @param filename a String, resource name of the stylesheet.
+	 *
+	 * @return compiled stylesheet, from the cache if it is not modified.
+	 *
+	 * @throws Exception if stylesheet can not be read or compiled.
+	 */
+	public static Templates get(SolrCore core, String filename) throws Exception {
+		ConcurrentHashMap<String, Entry> map = entries(core);
+		long modified = lastModified(core.getResourceLoader(), filename);
+
+		Entry e = map.get(filename);
+		if(e != null && e.modified == modified) return e.templates;
+
+		// the same stylesheet is not compiled twice when requested by several threads
+		synchronized (map) {
+			e = map.get(filename);
+			if(e != null && e.modified == modified) return e.templates;
+
+			long t0 = System.currentTimeMillis();
+			Templates templates = compile(core, filename);
+			LOG.info("compiled {} in {} ms", filename, System.currentTimeMillis() - t0);
+
+			map.put(filename, new Entry(templates, modified));
+			return templates;
+		}
+	}
+
+	private static ConcurrentHashMap<String, Entry> entries(SolrCore core) {
+		SolrResourceLoader loader = core.getResourceLoader();
+		synchronized (cores) {
+			ConcurrentHashMap<String, Entry> map = cores.get(loader);
+			if(map == null) {
+				cores.put(loader, map = new ConcurrentHashMap<>());
+				core.addCloseHook(new CloseHook() {
+					@Override
+					public void preClose(SolrCore core) {
+					}
+					@Override
+					public void postClose(SolrCore core) {
+						synchronized (cores) {
+							cores.remove(loader);
+						}
+					}
+				});
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * @return modification time of local file, 0 if the stylesheet is not a local file.
+	 */
+	private static long lastModified(SolrResourceLoader loader, String filename) {
+		try {
+			Path path = Paths.get(loader.getConfigDir(), filename);
+			return Files.isRegularFile(path) ? path.toFile().lastModified() : 0;
+		}
+		catch(Exception e) {
+			// e.g. configuration in ZooKeeper
+			return 0;
+		}
+	}
+
+	static Templates compile(SolrCore core, String filename) throws Exception {
+		ClassLoader ctxLoader = Thread.currentThread().getContextClassLoader();
+
+		try(InputStream is = core.getResourceLoader().openResource(filename)) {
+
+			final StreamSource src = new StreamSource(is,
+					SystemIdResolver.createSystemIdFromResourceName(filename));
+
+			final TransformerFactory tFactory = TransformerFactory.newInstance();
+			tFactory.setURIResolver(new SystemIdResolver(core.getResourceLoader()).asURIResolver());
+			tFactory.setErrorListener(new XMLErrorLogger(LOG));
+			Thread.currentThread().setContextClassLoader(core.getMemClassLoader());
+
+			return tFactory.newTemplates(src);
+		}
+		finally {
+			Thread.currentThread().setContextClassLoader(ctxLoader);
+		}
+	}
+
+	private static final class Entry {
+		final Templates templates;
+		final long modified;
+
+		Entry(Templates templates, long modified) {
+			this.templates = templates;
+			this.modified = modified;
+		}
+	}
+}
@@ -1,8 +1,6 @@
 package dinom.solr;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -17,12 +15,39 @@ import org.w3c.dom.Node;
  */
 public interface Template {
 	
+	/**
+	 * Per-thread buffer used by {@link #apply(Object)}.
+	 */
+	static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+	
+	/**
+	 * Appends rendered template to the buffer. Variables and conversions are written directly to 'out'
+	 * (see {@link Conversion#write(StringBuilder, Object)}), so the call itself does not create
+	 * intermediate objects for common conversions.
+	 * 
+	 * @param out StringBuilder, target buffer, owned by calling thread.
+	 * @param val an Object, template value.
+	 */
 	public void write(StringBuilder out, Object val);
 	
+	/**
+	 * Renders the template into the per-thread buffer and returns the result. The call is reentrant:
+	 * nested call appends after what is rendered by outer one and restores the buffer length.
+	 */
 	public default String apply(Object val) {
-		StringBuilder buf = new StringBuilder();
-		this.write(buf,val);
-		return buf.toString();
+		StringBuilder buf = BUFFER.get();
+		int start = buf.length();
+		try {
+			this.write(buf,val);
+			return buf.substring(start);
+		}
+		finally {
+			buf.setLength(start);
+			if(start == 0 && buf.capacity() > 65536) {
+				// do not keep huge buffers after rare huge values
+				BUFFER.remove();
+			}
+		}
 	}
 	
 	public static Template create( ArrayList<String> txts, ArrayList<String> names, ArrayList<Conversion> types) {
@@ -38,6 +63,13 @@ public interface Template {
 	}
 	
 	public static Template compile(String text, Conversion defType) {
+		if(TemplateCache.isEnabled()) {
+			return TemplateCache.template(text, defType, () -> compileText(text, defType));
+		}
+		return compileText(text, defType);
+	}
+	
+	static Template compileText(String text, Conversion defType) {
 
 		int i = text.indexOf("${");
 		if(i == -1) {
@@ -123,7 +155,7 @@ public interface Template {
 	public Template VALUE = new Template() {
 		@Override
 		public void write(StringBuilder out, Object val) {	
-			if(val != null) out.append(val.toString());
+			Conversion.NONE.write(out, val);
 		}
 		@Override
 		public String apply(Object val) {
@@ -152,8 +184,8 @@ public interface Template {
 	}
 	
 	public static class PlainValue implements Template {
-		List<String> text;
-		List<Conversion> vars;
+		final List<String> text;
+		final List<Conversion> vars;
 		
 		public PlainValue(List<String> text, List<Conversion> vars ) {
 			this.vars = vars;
@@ -167,17 +199,13 @@ public interface Template {
 			for(i=0; i < vars.size(); ++i) {
 				out.append( text.get(i) );
 				
-				Conversion slot = vars.get(i);
-				Object v = slot.apply(val);
-				if(v != null) {
-					out.append(v.toString());
-				}
+				vars.get(i).write(out, val);
 			}	
 			while(i < text.size()) out.append(text.get(i++));
 		}
 	}
 	public static class MapValue extends PlainValue {
-		List<String> names;
+		final List<String> names;
 		
 		public MapValue(List<String> text, List<String> names, List<Conversion> vars) {
 			super(text, vars);
@@ -188,28 +216,19 @@ public interface Template {
 		
 		@Override
 		public void write(StringBuilder out, Object val) {
-			Map<String,Object> map;
+			// not a Map value is seen as {"value": val}
+			Map<?,?> map = val instanceof Map ? (Map<?,?>)val : null;
 			
-			if(val == null) {
-				map = Collections.emptyMap();
-			}
-			else if(val instanceof Map) {
-				map = (Map<String,Object>)val;
-			}
-			else {
-				map = new HashMap<>(1);
-				map.put("value", val);
-			}			
 			int i;
 			for(i=0; i < vars.size(); ++i) {
 				out.append( text.get(i) );
 				
-				Conversion slot = vars.get(i);
+				String name = names.get(i);
+				Object v = map != null 
+						? map.get(name) 
+						: ("value".equals(name) ? val : null);
 				
-				Object v = slot.apply(map.get(names.get(i)));
-				if(v != null) {
-					out.append(v.toString());
-				}
+				vars.get(i).write(out, v);
 			}	
 			while(i < text.size()) out.append(text.get(i++));
 		}
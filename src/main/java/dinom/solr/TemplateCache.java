@@ -0,0 +1,133 @@
+package dinom.solr;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * <p>Shares identical templates and conversion chains between models. Models of different handlers,
+ * nested search models and different operators of the same model often use the same texts, such as
+ * <code>${value:escape}</code>; with the cache they are parsed once and refer to the same
+ * instances.</p>
+ *
+ * <p>The cache is used only while {@link SearchModel} is parsed (see {@link #setEnabled(Boolean)}), as
+ * model templates and conversions are never modified after parsing. Instances created by other code
+ * (e.g. {@link Conversion#parse(String)} called directly) are not shared.</p>
+ *
+ * <p>Both maps are bounded, least recently used entries are evicted. Models keep references to the
+ * instances they use, so eviction only means that models parsed later get new instances; the
+ * templates of reloaded models are not pinned by the cache.</p>
+ *
+ * @author VF
+ */
+public final class TemplateCache {
+
+	/**
+	 * Maximum number of entries in each map.
+	 */
+	static final int MAX_SIZE = 10000;
+
+	private static final ThreadLocal<Boolean> ENABLED = new ThreadLocal<>();
+
+	// used only while models are parsed, so synchronization is not a bottleneck
+	private static final Map<String, Conversion> conversions = lru();
+	private static final Map<Key, Template> templates = lru();
+
+	private TemplateCache() {
+	}
+
+	public static boolean isEnabled() {
+		return Boolean.TRUE.equals(ENABLED.get());
+	}
+
+	/**
+	 * Enables or disables the cache for current thread.
+	 *
+	 * @param enabled Boolean, new state, 'null' - remove the setting.
+	 *
+	 * @return previous state, to be restored when parsing is finished.
+	 */
+	public static Boolean setEnabled(Boolean enabled) {
+		Boolean old = ENABLED.get();
+		if(enabled == null) ENABLED.remove();
+		else ENABLED.set(enabled);
+		return old;
+	}
+
+	/**
+	 * @return shared conversion chain for the specification, parsed by 'parser' if not cached yet.
+	 */
+	static Conversion conversion(String spec, Supplier<Conversion> parser) {
+		Conversion conv = conversions.get(spec);
+		if(conv != null) return conv;
+
+		conv = parser.get();
+		if(conv == null) return conv;
+
+		Conversion prev = conversions.putIfAbsent(spec, conv);
+		return prev == null ? conv : prev;
+	}
+
+	/**
+	 * @return shared template for the text and default conversion, compiled by 'compiler' if not cached yet.
+	 */
+	static Template template(String text, Conversion defType, Supplier<Template> compiler) {
+		Key key = new Key(text, defType);
+		Template tmpl = templates.get(key);
+		if(tmpl != null) return tmpl;
+
+		tmpl = compiler.get();
+
+		Template prev = templates.putIfAbsent(key, tmpl);
+		return prev == null ? tmpl : prev;
+	}
+
+	/**
+	 * @return number of shared templates and conversions.
+	 */
+	public static int size() {
+		return templates.size() + conversions.size();
+	}
+
+	public static void clear() {
+		templates.clear();
+		conversions.clear();
+	}
+
+	private static <K, V> Map<K, V> lru() {
+		return Collections.synchronizedMap(new LinkedHashMap<K, V>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > MAX_SIZE;
+			}
+		});
+	}
+
+	private static final class Key {
+		final String text;
+		final Conversion defType;
+		final int hash;
+
+		Key(String text, Conversion defType) {
+			this.text = text;
+			this.defType = defType;
+			this.hash = text.hashCode() * 31 + System.identityHashCode(defType);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) return false;
+			Key k = (Key)obj;
+			// conversions are shared too, so the same specification is the same instance
+			return defType == k.defType && text.equals(k.text);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package dinom.solr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+import dinom.solr.op.FacetDecorator;
+import dinom.solr.op.ResponseHandler;
+
+/**
+ * <p>Bounded LRU cache of translated search requests. The key is canonical form of JSON request
+ * (see {@link #key(Map)}), the value is what {@link QueryBuilder#build(SearchModel, Map) build} has
+ * produced: query parameters, response handler chain and facet decorators.</p>
+ *
+ * <p>Only requests that are translated without side effects are cached, see {@link QueryBuilder#isCacheable()}.
+ * The cache belongs to one {@link SearchModel} and must be cleared when the model is replaced.</p>
+ *
+ * @author VF
+ */
+public class TranslationCache {
+
+	private final LinkedHashMap<String, Entry> map;
+	private final int maxSize;
+
+	private long hits, misses, evictions;
+
+	public TranslationCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if(size() > TranslationCache.this.maxSize) {
+					++evictions;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Looks for translated request and if found, creates new {@link QueryBuilder} for the request.
+	 *
+	 * @return QueryBuilder ready to use or 'null' if the key is not in the cache.
+	 */
+	public QueryBuilder get(String key, CustomSearchHandler handler, SolrQueryRequest req,
+			SolrQueryResponse rsp, Map<String,Object> json) {
+		Entry e;
+		synchronized (this) {
+			e = map.get(key);
+			if(e == null) {
+				++misses;
+				return null;
+			}
+			++hits;
+		}
+		return e.restore(new QueryBuilder(handler, req, rsp), json);
+	}
+
+	/**
+	 * Puts translated request into the cache. Built query is copied, so it can be used
+	 * (and changed) by the request it was built for.
+	 */
+	public void put(String key, QueryBuilder built) {
+		Entry e = new Entry(built);
+		synchronized (this) {
+			map.put(key, e);
+		}
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Puts cache statistics into the map, used to report the cache state via metrics.
+	 */
+	public synchronized void getStats(Map<String,Object> stats) {
+		stats.put("size", map.size());
+		stats.put("maxSize", maxSize);
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("evictions", evictions);
+		long lookups = hits + misses;
+		stats.put("hitratio", lookups == 0 ? 0.0 : ((double)hits) / lookups);
+	}
+
+	/**
+	 * Canonical form of JSON request: map keys are sorted, so requests that differ only
+	 * in key order produce the same key.
+	 *
+	 * @param json Map, JSON request after URL parameters are merged into it.
+	 *
+	 * @return a String, cache key.
+	 */
+	public static String key(Map<String,Object> json) {
+		StringBuilder out = new StringBuilder(256);
+		write(out, json);
+		return out.toString();
+	}
+
+	private static void write(StringBuilder out, Object val) {
+		if(val instanceof Map) {
+			Map<?,?> map = (Map<?,?>)val;
+			String[] keys = new String[map.size()];
+			int i = 0;
+			for(Object k : map.keySet()) keys[i++] = String.valueOf(k);
+			Arrays.sort(keys);
+
+			out.append('{');
+			for(i=0; i < keys.length; ++i) {
+				if(i > 0) out.append(',');
+				writeString(out, keys[i]);
+				out.append(':');
+				write(out, map.get(keys[i]));
+			}
+			out.append('}');
+		}
+		else if(val instanceof List) {
+			out.append('[');
+			Iterator<?> itor = ((List<?>)val).iterator();
+			for(int i=0; itor.hasNext(); ++i) {
+				if(i > 0) out.append(',');
+				write(out, itor.next());
+			}
+			out.append(']');
+		}
+		else if(val instanceof String) {
+			writeString(out, (String)val);
+		}
+		else {
+			out.append(val);
+		}
+	}
+
+	private static void writeString(StringBuilder out, String s) {
+		out.append('"');
+		for(int i=0, max = s.length(); i < max; ++i) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') out.append('\\');
+			out.append(c);
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Immutable result of translation.
+	 */
+	static class Entry {
+		final String[] names;
+		final String[][] values;
+		final List<ResponseHandler> responseHandlers;
+		final List<FacetDecorator> facetDecorators;
+		final boolean facet;
+
+		Entry(QueryBuilder xq) {
+			ArrayList<String> lst = new ArrayList<>();
+			for(Iterator<String> itor = xq.getParameterNamesIterator(); itor.hasNext(); ) {
+				lst.add(itor.next());
+			}
+			names = lst.toArray(new String[lst.size()]);
+			values = new String[names.length][];
+			for(int i=0; i < names.length; ++i) {
+				values[i] = xq.getParams(names[i]).clone();
+			}
+
+			responseHandlers = Collections.unmodifiableList(new ArrayList<>(xq.responseHandlers));
+			facetDecorators = xq.facetDecorators == null ? null :
+				Collections.unmodifiableList(new ArrayList<>(xq.facetDecorators));
+			facet = xq.facet;
+		}
+
+		QueryBuilder restore(QueryBuilder xq, Map<String,Object> json) {
+			xq.json = json;
+			for(int i=0; i < names.length; ++i) {
+				xq.set(names[i], values[i]);
+			}
+			xq.responseHandlers = new ArrayList<>(responseHandlers);
+			xq.facetDecorators = facetDecorators == null ? null : new ArrayList<>(facetDecorators);
+			xq.facet = facet;
+			return xq;
+		}
+	}
+}
@@ -254,6 +254,25 @@ public final class Util {
 		return -1;
 	}
 
+	/**
+	 * Byte level search, e.g. of UTF-8 encoded text in UTF-8 encoded data.
+	 * 
+	 * @return index of the first occurrence of 'pattern' in 'src' or -1 if not found.
+	 */
+	public static int indexOf(byte[] src, byte[] pattern) {
+		int plen = pattern.length;
+		if(plen == 0) return 0;
+		byte first = pattern[0];
+		
+		for(int i=0, max = src.length - plen; i <= max; ++i) {
+			if(src[i] != first) continue;
+			int j = 1;
+			while(j < plen && src[i+j] == pattern[j]) ++j;
+			if(j == plen) return i;
+		}
+		return -1;
+	}
+
 	/**
 	 * Read parameter parameters from tag attributes.
 	 * 
@@ -301,12 +320,9 @@ public final class Util {
 	public static String toSolrDate(String dateString) {
 		dateString = dateString.trim();
 	
-	    if (dateString.isEmpty() || dateString.equals("*") || dateString.contains("NOW")) {
+	    if (isSolrDate(dateString)) {
 	        return dateString;
 	    }
-	    if(dateString.endsWith("Z") && (dateString.length() == 24 || dateString.length()==20)) {
-	    	return dateString;
-	    }
 	    
 	    Calendar c = parseDateTime(dateString);
 	    if(c == null) {
@@ -314,6 +330,34 @@ public final class Util {
 	    }
 	    return DateTimeFormatter.ISO_INSTANT.format(c.toInstant());
 	}
+	
+	/**
+	 * Same as {@link #toSolrDate(String)}, but appends the date to the buffer.
+	 * 
+	 * @return false if the date is not valid, nothing is appended in this case.
+	 */
+	public static boolean appendSolrDate(StringBuilder out, String dateString) {
+		dateString = dateString.trim();
+		
+		if (isSolrDate(dateString)) {
+			out.append(dateString);
+			return true;
+		}
+		Calendar c = parseDateTime(dateString);
+		if(c == null) {
+			return false;
+		}
+		DateTimeFormatter.ISO_INSTANT.formatTo(c.toInstant(), out);
+		return true;
+	}
+	
+	/**
+	 * @return true if the (trimmed) value can be passed to Solr as is: empty, '*', date math or UTC date.
+	 */
+	private static boolean isSolrDate(String dateString) {
+		return dateString.isEmpty() || dateString.equals("*") || dateString.contains("NOW")
+				|| dateString.endsWith("Z") && (dateString.length() == 24 || dateString.length()==20);
+	}
 	public static String toSolrDate(String dateString, String timeString, String timezone) {
 		
 		Calendar c = parseDate(dateString);
@@ -366,6 +410,13 @@ public final class Util {
 		return new HtmlReader().extractText(html);
 	}
 
+	/**
+	 * @param rules a String, what to skip, see {@link HtmlReader.Rules#of(String)}.
+	 */
+	public static String html2text(String html, String rules) {
+		return new HtmlReader().setRules(HtmlReader.Rules.of(rules)).extractText(html);
+	}
+
 	public static final String combine(String template, Object value, String op, boolean escape, boolean quotes) {
 		if(value == null) return template;
 		
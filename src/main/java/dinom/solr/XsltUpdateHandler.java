@@ -2,31 +2,46 @@ package dinom.solr;
 
 import static org.apache.solr.security.PermissionNameProvider.Name.UPDATE_PERM;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.Templates;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ContentStream;
 import org.apache.solr.common.util.ContentStreamBase;
-import org.apache.solr.common.util.XMLErrorLogger;
 import org.apache.solr.core.PluginInfo;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.ContentStreamHandlerBase;
+import org.apache.solr.handler.RequestHandlerUtils;
 import org.apache.solr.handler.loader.ContentStreamLoader;
 import org.apache.solr.handler.loader.XMLLoader;
+import org.apache.solr.metrics.MetricsMap;
+import org.apache.solr.metrics.SolrMetricManager;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.security.AuthorizationContext;
 import org.apache.solr.security.PermissionNameProvider;
 import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
-import org.apache.solr.util.SystemIdResolver;
 import org.apache.solr.util.plugin.PluginInfoInitialized;
 import org.apache.solr.util.plugin.SolrCoreAware;
 import org.slf4j.Logger;
@@ -40,23 +55,30 @@ public class XsltUpdateHandler extends ContentStreamHandlerBase implements SolrC
 	String xslt;
 	Loader loader;
 	String requestTraceHeader;
+	int batchThreads;
 
 	@Override
 	public void init(PluginInfo info) {
 		init(info.initArgs);
 		
 	    // Only invariants list is worked with. It can not be changed by request parameters.
-		String xmlField = null;
+		String xmlField = null, hashField = null, splitElement = null;
 	    if(invariants != null ) {
 	    	xslt = invariants.get(CommonParams.TR);
 	    	xmlField = invariants.get("xmlField");
+	    	hashField = invariants.get("hashField");
+	    	splitElement = invariants.get("splitElement");
 	    }
 	    if(xslt == null) {
 	    	xslt = info.attributes.get("name").substring(1)+".xsl";
 	    }
 		requestTraceHeader = invariants.get("requestTrackHeader");
+		batchThreads = Math.max(1, invariants.getInt("batchThreads", 4));
 
 	    (loader = new Loader(xmlField)).init(invariants);
+	    loader.setHashField(hashField);
+	    loader.setSplitElement(splitElement);
+	    loader.setHtmlRules(invariants == null ? null : invariants.get("htmlRules"));
 	}
 
 	@Override
@@ -65,6 +87,17 @@ public class XsltUpdateHandler extends ContentStreamHandlerBase implements SolrC
 		loader.compile(core, "xslt/" + xslt);
 	}
 
+	@Override
+	public void initializeMetrics(SolrMetricManager manager, String registryName, String scope) {
+		super.initializeMetrics(manager, registryName, scope);
+		
+		manager.registerGauge(this, registryName, new MetricsMap((detailed, map) -> loader.getStats(map)),
+				true, "transformerPool", getCategory().toString(), scope);
+		manager.registerGauge(this, registryName, new MetricsMap((detailed, map) -> loader.getCompileStats(map)),
+				true, "stylesheet", getCategory().toString(), scope);
+		loader.setMetrics(new IngestMetrics(manager, registryName, this, getCategory().toString(), scope));
+	}
+
 	@Override
 	public PermissionNameProvider.Name getPermissionName(AuthorizationContext ctx) {
 		return UPDATE_PERM;
@@ -94,11 +127,112 @@ public class XsltUpdateHandler extends ContentStreamHandlerBase implements SolrC
 		}
 	}
 
+	/**
+	 * <p>With 'batch=true' each posted stream (a part of multipart body, an entry of zip archive) is
+	 * a separate document. Documents are transformed in parallel by 'threads' workers (at most
+	 * 'batchThreads' invariant, default 4) and added to the update chain in batches of 'batchSize'
+	 * (default 100), in posted order unless 'ordered=false'. Each document is stored in 'xmlField'
+	 * on its own, as when posted by separate request. Only documents can be added in batch mode.</p>
+	 */
+	@Override
+	public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+		SolrParams params = req.getParams();
+		Iterable<ContentStream> streams = req.getContentStreams();
+		if(!params.getBool("batch", false) || streams == null) {
+			super.handleRequestBody(req, rsp);
+			return;
+		}
+		int threads = Math.max(1, Math.min(params.getInt("threads", batchThreads), batchThreads));
+		BulkUpdateJob job = new BulkUpdateJob(null);
+		UpdateRequestProcessor processor = req.getCore().getUpdateProcessorChain(params).createProcessor(req, rsp);
+		BulkUpdateWorkers workers = null;
+		try {
+			job.start(-1);
+			workers = new BulkUpdateWorkers(loader, req, processor, threads, params.getInt("batchSize", 100),
+					false, job, false, null, params.getBool("ordered", true));
+			int count = 0;
+			for(ContentStream stream : streams) {
+				String name = stream.getName() != null ? stream.getName() : "stream-" + count;
+				++count;
+				if(!submit(workers, stream, name)) break;
+			}
+			Exception err = workers.finish();
+			job.finish(err);
+			if(err != null) throw err;
+
+			RequestHandlerUtils.handleCommit(req, processor, params, false);
+			RequestHandlerUtils.handleRollback(req, processor, params, false);
+			rsp.add("batch", job.getStatus());
+		}
+		finally {
+			if(workers != null) workers.close();
+			try {
+				processor.finish();
+			}
+			finally {
+				processor.close();
+			}
+		}
+	}
+
+	/**
+	 * @return false if workers failed and no more documents should be submitted.
+	 */
+	private static boolean submit(BulkUpdateWorkers workers, ContentStream stream, String name) throws Exception {
+		String type = stream.getContentType();
+		try(InputStream is = stream.getStream()) {
+			if(!isZip(type, name)) {
+				return workers.submit(name, IOUtils.toByteArray(is), null, type != null ? type : "text/xml");
+			}
+			ZipInputStream zip = new ZipInputStream(is);
+			for(ZipEntry e; (e = zip.getNextEntry()) != null; ) {
+				if(e.isDirectory()) continue;
+				if(!workers.submit(name + "!" + e.getName(), IOUtils.toByteArray(zip), null, "text/xml")) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static boolean isZip(String contentType, String name) {
+		if(contentType != null && (contentType.startsWith("application/zip") ||
+				contentType.startsWith("application/x-zip"))) {
+			return true;
+		}
+		return name.toLowerCase().endsWith(".zip");
+	}
+
 	public static class Loader extends XMLLoader {
 		
+		private static final XMLInputFactory SPLIT_INPUT = XMLInputFactory.newInstance();
+		private static final XMLOutputFactory SPLIT_OUTPUT = XMLOutputFactory.newInstance();
+		private static final XMLEventFactory SPLIT_EVENTS = XMLEventFactory.newInstance();
+		static {
+			SPLIT_INPUT.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			SPLIT_INPUT.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			// a record may use namespaces declared by its ancestors
+			SPLIT_OUTPUT.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+		}
+		
 		protected String xmlField;
-		protected Templates templates;
-		private Exception compileErr;
+		protected String hashField;
+		protected String splitElement;
+		protected String htmlRules;
+		protected volatile Templates templates;
+		/**
+		 * Failure of the last compilation, 'null' after a successful one.
+		 */
+		private volatile Exception compileErr;
+		private final AtomicLong compileFailures = new AtomicLong();
+		private volatile IngestMetrics metrics;
+		
+		/**
+		 * Idle transformers of current templates. A transformer is taken for one load and
+		 * returned after it, so it is used by one thread at a time.
+		 */
+		ArrayBlockingQueue<Transformer> pool = new ArrayBlockingQueue<>(8);
+		private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), discarded = new AtomicLong();
 		
 		public Loader(String xmlField) {
 			this.xmlField = xmlField;
@@ -111,48 +245,263 @@ public class XsltUpdateHandler extends ContentStreamHandlerBase implements SolrC
 			return xmlField;
 		}
 		
+		/**
+		 * Reads 'transformerPoolSize' (default 8) in addition to XMLLoader parameters.
+		 */
+		@Override
+		public XMLLoader init(SolrParams args) {
+			super.init(args);
+			int size = args == null ? 0 : args.getInt("transformerPoolSize", 0);
+			if(size > 0) pool = new ArrayBlockingQueue<>(size);
+			return this;
+		}
+		
+		/**
+		 * Puts transformer pool statistics into the map, used to report it via metrics.
+		 */
+		public void getStats(Map<String,Object> stats) {
+			long h = hits.get(), m = misses.get();
+			stats.put("size", pool.size());
+			stats.put("maxSize", pool.size() + pool.remainingCapacity());
+			stats.put("hits", h);
+			stats.put("misses", m);
+			stats.put("discarded", discarded.get());
+			stats.put("hitratio", h + m == 0 ? 0.0 : ((double)h) / (h + m));
+		}
+		
+		/**
+		 * Puts stylesheet state into the map: whether it is compiled, number of failed compilations
+		 * and the last failure.
+		 */
+		public void getCompileStats(Map<String,Object> stats) {
+			stats.put("valid", templates != null);
+			stats.put("compileFailures", compileFailures.get());
+			Exception err = compileErr;
+			if(err != null) stats.put("lastError", String.valueOf(err.getMessage()));
+		}
+		
+		/**
+		 * @param metrics IngestMetrics, if set, loads are measured.
+		 */
+		void setMetrics(IngestMetrics metrics) {
+			this.metrics = metrics;
+		}
+		
+		IngestMetrics getMetrics() {
+			return metrics;
+		}
+		
+		/**
+		 * @param hashField a String, field to store content hash in, see {@link ContentHashProcessor}.
+		 */
+		public void setHashField(String hashField) {
+			this.hashField = hashField;
+		}
+		
+		/**
+		 * @param htmlRules a String, passed to stylesheet as 'htmlRules' parameter, to be used with
+		 * {@link Util#html2text(String, String)}.
+		 * 
+		 * @throws IllegalArgumentException if the rules are invalid.
+		 */
+		public void setHtmlRules(String htmlRules) {
+			HtmlReader.Rules.of(htmlRules);
+			this.htmlRules = htmlRules;
+		}
+		
+		/**
+		 * @param splitElement a String, local name of record element. If set, posted XML is a feed of
+		 * records, each record is transformed (and stored in 'xmlField') as separate XML.
+		 */
+		public void setSplitElement(String splitElement) {
+			this.splitElement = splitElement;
+		}
+		
+		/**
+		 * Takes compiled stylesheet from the core cache, see {@link StylesheetCache}.
+		 */
 		public void compile(SolrCore core, String filename) {
-			
-			ClassLoader ctxLoader = Thread.currentThread().getContextClassLoader();
-			
-			try(InputStream is = core.getResourceLoader().openResource(filename)) {
-				
-				final StreamSource src = new StreamSource(is,
-						SystemIdResolver.createSystemIdFromResourceName(filename));
-				
-				final TransformerFactory tFactory = TransformerFactory.newInstance();
-				tFactory.setURIResolver(new SystemIdResolver(core.getResourceLoader()).asURIResolver());
-				tFactory.setErrorListener(new XMLErrorLogger(LOG));
-				Thread.currentThread().setContextClassLoader(core.getMemClassLoader());
-				
-				templates = tFactory.newTemplates(src);
+			try {
+				Templates t = StylesheetCache.get(core, filename);
+				if(t != templates) {
+					templates = t;
+					// transformers of previous templates are not reused
+					pool.clear();
+				}
+				compileErr = null;
 			}
 			catch (Exception e) {
+				compileFailures.incrementAndGet();
 				LOG.error("Failed to open and compile "+filename, compileErr = e);
 			}
-			finally {
-				Thread.currentThread().setContextClassLoader(ctxLoader);
-			}
 		}
 
 		@Override
 		public void load(SolrQueryRequest req, SolrQueryResponse rsp, ContentStream stream,
 				UpdateRequestProcessor processor) throws Exception {
+			load(req, rsp, stream, processor, true);
+		}
+		
+		/**
+		 * @param timeChain a Boolean, false if 'processor' only buffers documents (see {@link BulkUpdateWorkers}),
+		 * which measure the update chain when the buffer is added to it.
+		 */
+		void load(SolrQueryRequest req, SolrQueryResponse rsp, ContentStream stream,
+				UpdateRequestProcessor processor, boolean timeChain) throws Exception {
 			
 			if(templates == null) {
 				throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "XSLT template not initialized", compileErr);
 			}
 			
+			// XMLLoader takes the transformer from request context
+			IngestMetrics m = metrics;
+			Templates templates = this.templates;
+			long t0 = System.nanoTime();
+			Transformer transformer = borrow(req, templates);
+			if(m != null) IngestMetrics.time(m.acquireTimes, t0);
+			// parameters are cleared when transformer is returned to the pool
+			if(htmlRules != null) transformer.setParameter("htmlRules", htmlRules);
+			
+			IngestMetrics.Input input = null;
+			IngestMetrics.Chain chain = null;
+			if(m != null) {
+				stream = input = m.new Input(stream);
+				if(timeChain) processor = chain = m.new Chain(processor);
+			}
+			req.getContext().put(CONTEXT_TRANSFORMER_KEY, transformer);
+			long t1 = System.nanoTime();
+			try {
+				if(splitElement != null) split(req, rsp, stream, processor);
+				else transform(req, rsp, stream, processor);
+			}
+			finally {
+				req.getContext().remove(CONTEXT_TRANSFORMER_KEY);
+				release(transformer, templates);
+				if(m != null) {
+					m.transformTimes.update(System.nanoTime() - t1 - (chain != null ? chain.nanos : 0), TimeUnit.NANOSECONDS);
+					input.done();
+				}
+			}
+		}
+		
+		private Transformer borrow(SolrQueryRequest req, Templates templates) throws TransformerConfigurationException {
+			Transformer t = pool.poll();
+			if(t != null) {
+				hits.incrementAndGet();
+				return t;
+			}
+			misses.incrementAndGet();
+			
 			ClassLoader ctxLoader = Thread.currentThread().getContextClassLoader();
 			try {
 				Thread.currentThread().setContextClassLoader(req.getCore().getMemClassLoader());
 				
-				req.getContext().put(CONTEXT_TRANSFORMER_KEY, templates.newTransformer());
+				return templates.newTransformer();
 			}
 			finally {
 				Thread.currentThread().setContextClassLoader(ctxLoader);
 			}
+		}
+		
+		void release(Transformer t, Templates templates) {
+			// not returned if templates were recompiled meanwhile or the pool is full
+			if(templates == this.templates) {
+				// not reset(), it also drops URIResolver and ErrorListener set by StylesheetCache
+				t.clearParameters();
+				if(pool.offer(t)) return;
+			}
+			discarded.incrementAndGet();
+		}
+		
+		/**
+		 * Reads the feed as a stream of events and transforms each record when it is read, so
+		 * only one record is kept in memory. Record is serialized from parsed events (UTF-8),
+		 * it is equivalent to, but not necessarily the same bytes as, the posted fragment.
+		 */
+		private void split(SolrQueryRequest req, SolrQueryResponse rsp, ContentStream stream,
+				UpdateRequestProcessor processor) throws Exception {
+			
+			String charset = ContentStreamBase.getCharsetFromContentType(stream.getContentType());
+			try(InputStream is = stream.getStream()) {
+				split(is, charset, splitElement, stream.getName(), (xml, number) -> {
+					ContentStreamBase.ByteArrayStream record = new ContentStreamBase.ByteArrayStream(
+							xml, stream.getName() + "#" + number, "text/xml; charset=utf-8");
+					record.setSourceInfo(stream.getSourceInfo());
+					transform(req, rsp, record, processor);
+				});
+			}
+		}
+		
+		/**
+		 * Receives records of a split feed, see {@link Loader#split(InputStream, String, String, String, RecordHandler)}.
+		 */
+		interface RecordHandler {
+			/**
+			 * @param xml byte array, the record as a standalone UTF-8 document.
+			 * @param number an Integer, position of the record in the feed, starting from 1.
+			 */
+			void record(byte[] xml, int number) throws Exception;
+		}
+		
+		/**
+		 * Passes each 'splitElement' of the feed to 'handler'. Namespaces the record uses are declared
+		 * in it, also the ones declared by its ancestors.
+		 * 
+		 * @param charset a String, encoding of the feed, 'null' to detect it.
+		 * @param name a String, name of the feed for error messages.
+		 * @return number of records.
+		 * 
+		 * @throws SolrException if 'handler' fails, with the number of the failed record.
+		 */
+		static int split(InputStream is, String charset, String splitElement, String name,
+				RecordHandler handler) throws Exception {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+			int count = 0;
+			
+			XMLEventReader reader = charset == null ? SPLIT_INPUT.createXMLEventReader(is) :
+					SPLIT_INPUT.createXMLEventReader(is, charset);
+			try {
+				while(reader.hasNext()) {
+					XMLEvent ev = reader.nextEvent();
+					if(!ev.isStartElement() || !splitElement.equals(ev.asStartElement().getName().getLocalPart())) {
+						continue;
+					}
+					out.reset();
+					XMLEventWriter writer = SPLIT_OUTPUT.createXMLEventWriter(out, "UTF-8");
+					writer.add(SPLIT_EVENTS.createStartDocument("UTF-8", "1.0"));
+					writer.add(ev);
+					for(int depth = 1; depth > 0; ) {
+						ev = reader.nextEvent();
+						if(ev.isStartElement()) ++depth;
+						else if(ev.isEndElement()) --depth;
+						writer.add(ev);
+					}
+					writer.add(SPLIT_EVENTS.createEndDocument());
+					writer.close();
+					
+					++count;
+					try {
+						handler.record(out.toByteArray(), count);
+					}
+					catch(Exception e) {
+						throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+								"Failed record " + count + " of " + name + ": " + e.getMessage(), e);
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+			return count;
+		}
+		
+		private void transform(SolrQueryRequest req, SolrQueryResponse rsp, ContentStream stream,
+				UpdateRequestProcessor processor) throws Exception {
 			
+			if(hashField != null) {
+				// wrapped before xml saver, so stored xml is a part of content hash
+				processor = new ContentHashProcessor(processor, hashField);
+			}
 			if(xmlField != null) {
 				// if to storage of posted xml is required, read all bytes, wrap processor
 				// into another one that adds xml as document field.
@@ -168,7 +517,10 @@ public class XsltUpdateHandler extends ContentStreamHandlerBase implements SolrC
 				
 				String charset = ContentStreamBase.getCharsetFromContentType(stream.getContentType());
 				if(charset == null) {
+					long t0 = System.nanoTime();
 					charset = detectCharset(bytes);
+					IngestMetrics m = metrics;
+					if(m != null) IngestMetrics.time(m.charsetTimes, t0);
 				}
 				final String contentXml = new String(bytes,charset);
 
@@ -22,6 +22,11 @@ public class Composite extends SolrQueryOperator {
 	
 	protected ArrayList<SolrQueryOperator> list;
 	
+	/**
+	 * Compiled form of the {@link #list}, what is iterated by {@link #apply(QueryBuilder, Object) apply}.
+	 */
+	protected SolrQueryOperator[] ops;
+	
 	/**
 	 * Parses child nodes and adds an operator each of them. Attributes of the element and non element childs are ignored.
 	 * 
@@ -53,6 +58,7 @@ public class Composite extends SolrQueryOperator {
 				}
 			}
 		});
+		ops = list.toArray(new SolrQueryOperator[list.size()]);
 		return list.isEmpty() ? null :( list.size() == 1 ? list.get(0) : this); 
 	}
 	
@@ -71,8 +77,9 @@ public class Composite extends SolrQueryOperator {
 		
 		query.currentValue = value;
 		
-		for(SolrQueryOperator op : list) {
-			op.apply(query, query.currentValue);
+		SolrQueryOperator[] ops = this.ops;
+		for(int i=0; i < ops.length; ++i) {
+			ops[i].apply(query, query.currentValue);
 		}	
 		query.currentValue = old;
 	}
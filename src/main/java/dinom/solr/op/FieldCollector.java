@@ -0,0 +1,148 @@
+package dinom.solr.op;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.ReturnFields;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Reads values of 'collect' fields of {@link SearchOp} directly from the index, without
+ * building SolrDocument for each result document. Single valued string fields with docValues
+ * are read from docValues, other fields by stored fields visitor that loads only collected fields.
+ * Documents are read in docID order, values are returned in the result order.
+ * <p>
+ * The fast path is taken only if the result has the same fields as processed documents would:
+ * no document transformers (renames, pseudo fields), every field is requested by 'fl' of the
+ * sub-search and not stored docValues fields are returned as {@link org.apache.solr.response.DocsStreamer}
+ * does (for 'fl=*' only with useDocValuesAsStored).
+ *
+ * @author VF
+ */
+class FieldCollector {
+
+	final String[] fields;
+
+	FieldCollector(String[] fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * @param ctx ResultContext, sub-search result.
+	 *
+	 * @return list of values (single field) or maps of values, the same as collected from
+	 * processed documents; 'null' if some field is not a stored or docValues schema field
+	 * (e.g. pseudo field) or return fields differ, so documents should be processed.
+	 */
+	List<Object> collect(ResultContext ctx) throws IOException {
+		SolrIndexSearcher searcher = ctx.getSearcher();
+		IndexSchema schema = searcher.getSchema();
+		ReturnFields rf = ctx.getReturnFields();
+		if(rf == null || rf.getTransformer() != null) return null;
+
+		int nfields = fields.length;
+		SchemaField[] sf = new SchemaField[nfields];
+		boolean[] fromDocValues = new boolean[nfields];
+		Set<String> stored = null;
+
+		for(int i=0; i < nfields; ++i) {
+			sf[i] = schema.getFieldOrNull(fields[i]);
+			if(sf[i] == null || !rf.wantsField(fields[i])) return null;
+			if(!sf[i].stored() && rf.wantsAllFields() && !sf[i].useDocValuesAsStored()) return null;
+
+			if(sf[i].hasDocValues() && !sf[i].multiValued() && sf[i].getType() instanceof StrField) {
+				fromDocValues[i] = true;
+			}
+			else if(sf[i].stored()) {
+				if(stored == null) stored = new HashSet<>();
+				stored.add(fields[i]);
+			}
+			else return null;
+		}
+
+		DocList docs = ctx.getDocList();
+		int size = docs.size();
+
+		// docID in high bits, result position in low bits, so sort gives docID order
+		long[] order = new long[size];
+		DocIterator itor = docs.iterator();
+		for(int i=0; i < size; ++i) {
+			order[i] = ((long)itor.nextDoc() << 32) | i;
+		}
+		Arrays.sort(order);
+
+		Object[][] values = new Object[size][nfields];
+		List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+		LeafReaderContext leaf = null;
+		SortedDocValues[] dv = new SortedDocValues[nfields];
+
+		for(long o : order) {
+			int doc = (int)(o >>> 32);
+			Object[] vals = values[(int)o];
+
+			if(leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+				leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+				for(int i=0; i < nfields; ++i) {
+					if(fromDocValues[i]) dv[i] = DocValues.getSorted(leaf.reader(), fields[i]);
+				}
+			}
+			for(int i=0; i < nfields; ++i) {
+				// iterators only move forward, docs are in increasing order within the leaf
+				if(fromDocValues[i] && dv[i].advanceExact(doc - leaf.docBase)) {
+					vals[i] = dv[i].binaryValue().utf8ToString();
+				}
+			}
+			if(stored != null) {
+				Document d = searcher.doc(doc, stored);
+				for(int i=0; i < nfields; ++i) {
+					if(!fromDocValues[i]) vals[i] = value(sf[i], d);
+				}
+			}
+		}
+
+		ArrayList<Object> lst = new ArrayList<>(size);
+		for(Object[] vals : values) {
+			if(nfields == 1) {
+				if(vals[0] != null) lst.add(vals[0]);
+			}
+			else {
+				HashMap<String,Object> map = new HashMap<>();
+				for(int i=0; i < nfields; ++i) {
+					if(vals[i] != null) map.put(fields[i], vals[i]);
+				}
+				if(map.size() > 0) lst.add(map);
+			}
+		}
+		return lst;
+	}
+
+	/**
+	 * @return external value of stored field, a List for multi valued fields (as in SolrDocument).
+	 */
+	static Object value(SchemaField sf, Document doc) {
+		IndexableField[] flds = doc.getFields(sf.getName());
+		if(flds.length == 0) return null;
+		if(!sf.multiValued()) return sf.getType().toObject(flds[0]);
+
+		ArrayList<Object> lst = new ArrayList<>(flds.length);
+		for(IndexableField f : flds) lst.add(sf.getType().toObject(f));
+		return lst;
+	}
+}
@@ -25,6 +25,7 @@ public class If extends Composite {
 			if(cls != null) try {
 				If op = (If)cls.newInstance();
 				op.list = this.list;
+				op.ops = this.ops;
 				op.setArg(n.getNodeValue());
 				return op;
 			}
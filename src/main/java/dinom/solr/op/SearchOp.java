@@ -1,26 +1,58 @@
 package dinom.solr.op;
 
+import java.io.IOException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.response.ResultContext;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocList;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.util.RefCounted;
 import org.noggit.ObjectBuilder;
+import org.slf4j.MDC;
 import org.w3c.dom.Element;
 
 import dinom.solr.QueryBuilder;
 import dinom.solr.SearchModel;
+import dinom.solr.SearchResultCache;
+import dinom.solr.TranslationCache;
 import dinom.solr.Template;
 
+/**
+ * Runs a sub-search and exports its results into the response or collects values of its
+ * documents for the next operators.
+ * <p>
+ * With <code>async="true"</code> the sub-search is executed by handler's executor (see
+ * {@link dinom.solr.CustomSearchHandler#getSubSearchExecutor()}) while the model continues
+ * with next elements. It is joined before the main query is executed, waiting at most handler's
+ * 'subSearchTimeout' seconds. Response entries of its
+ * exports are reserved when it is started, so they keep the model order. Only exporting sub-searches
+ * can be async, 'collect' result is needed by the following operators at once.
+ * <p>
+ * With <code>cache="N"</code> up to N results are kept by {@link SearchResultCache} and reused while
+ * the index searcher is the same. Cache name for statistics is 'cacheName' attribute or the element name.
+ */
 public class SearchOp extends SolrQueryOperator {
 	
 	SearchModel model;
@@ -31,6 +63,9 @@ public class SearchOp extends SolrQueryOperator {
 	
 	Template params;
 	String[] collectFields;
+	FieldCollector collector;
+	boolean async;
+	SearchResultCache cache;
 
 	@Override
 	public SolrQueryOperator parse(Element el) {
@@ -92,6 +127,18 @@ public class SearchOp extends SolrQueryOperator {
 			for(int i=0; i<collectFields.length; ++i) {
 				collectFields[i] = collectFields[i].trim();
 			}
+			collector = new FieldCollector(collectFields);
+		}
+		
+		async = "true".equals(el.getAttribute("async"));
+		if(async && (export == null || collectFields != null)) {
+			throw new RuntimeException("Async search should have 'export' and can not 'collect' values");
+		}
+		
+		s = el.getAttribute("cache");
+		if(!s.isEmpty()) {
+			String name = el.getAttribute("cacheName");
+			cache = SearchModel.newCache(name.isEmpty() ? el.getTagName() : name, Integer.parseInt(s));
 		}
 		
 		if(el.hasChildNodes()) {
@@ -103,6 +150,9 @@ public class SearchOp extends SolrQueryOperator {
 	@Override
 	public void apply(QueryBuilder query, Object value) {
 		
+		// result depends on index content, not only on JSON request
+		query.setCacheable(false);
+		
 		QueryBuilder xq = new QueryBuilder();
 	
 
@@ -130,7 +180,26 @@ public class SearchOp extends SolrQueryOperator {
 			}
 		}
 
+		// low level specification of SOLR native parameters, without
+		// relevance to model. Useful to set what is not exposed
+		// via public model API. Overrides what was set by model
+		// if specified.
+		String qs = params == null ? null : params.apply(query.getJSON());
+
 		RefCounted<SolrIndexSearcher> rs = query.request.getCore().getSearcher();
+		SolrIndexSearcher searcher = rs.get();
+		
+		String cacheKey = null;
+		if(cache != null) {
+			cacheKey = qs == null ? TranslationCache.key(json) : TranslationCache.key(json) + '&' + qs;
+			SearchResultCache.Entry e = cache.get(cacheKey, searcher);
+			if(e != null) {
+				rs.decref();
+				done(query, e.getResult(), e.getCollected());
+				return;
+			}
+		}
+		
 		// YK: request.getSearcher() can return a new instance if a new searcher was warmed-up during the call
 		// Ensure we use the same searcher across the call and decrement its references to avoid resource leak
 		LocalSolrQueryRequest req = new LocalSolrQueryRequest(query.request.getCore(), xq){
@@ -146,85 +215,280 @@ public class SearchOp extends SolrQueryOperator {
 				rs.decref();
 			}
 		};
+		ExecutorService executor = async ? query.handler.getSubSearchExecutor() : null;
+		boolean submitted = false;
+		NamedList<?> result;
+		Object collected;
 		try {
-			xq.init(query.handler,req, rsp).build(model, json);
+			try {
+				xq.init(query.handler,req, rsp).build(model, json);
 			
-			if(params != null) {
-				// low level specification of SOLR native parameters, without
-				// relevance to model. Useful to set what is not exposed
-				// via public model API. Overrides what was set by model
-				// if specified.
-				
-				String qs = params.apply(query.getJSON());
-				for(String prm : qs.split("&")) {
-					int idx = prm.indexOf('=');
-					if(idx != -1) {
-						String key = prm.substring(0, idx).trim();
-						String val = prm.substring(idx+1).trim();
-						if(val.indexOf('%') !=-1) {
-							val = URLDecoder.decode(val,"UTF-8");
+				if(qs != null) {
+					for(String prm : qs.split("&")) {
+						int idx = prm.indexOf('=');
+						if(idx != -1) {
+							String key = prm.substring(0, idx).trim();
+							String val = prm.substring(idx+1).trim();
+							if(val.indexOf('%') !=-1) {
+								val = URLDecoder.decode(val,"UTF-8");
+							}
+							xq.set(key, val);
 						}
-						xq.set(key, val);
 					}
 				}
-			}
-
-			req.setParams(xq);
-			query.request.getCore().execute(query.handler, req, rsp);
-		}
-		catch(Exception e) {
-			throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,e.getMessage(), e);
-		} finally {
-			req.close();
-		}
-
+				// async searches of nested model are joined by this thread, so pool
+				// threads never wait for each other.
+				xq.joinPending();
 
-		NamedList<?> result = rsp.getValues();
-		
-		if(export != null) {
-			if(export.size() == 1) query.response.add(export.get(0), result);
-			else {
+				req.setParams(xq);
+			
+				if(executor != null) {
+					Map<String,String> mdc = MDC.getCopyOfContextMap();
+					// set by the search when it starts or by cancel, whichever is first, so a
+					// search that was not started is skipped and its request closed by cancel
+					AtomicBoolean claimed = new AtomicBoolean();
+					String key = cacheKey;
+					Runnable store = key == null ? null : () -> {
+						if(rsp.getException() == null) cache.put(key, searcher, detach(rsp.getValues()), null);
+					};
+					Future<?> f = executor.submit(() -> {
+						if(claimed.compareAndSet(false, true)) execute(query, req, rsp, mdc, store);
+					});
+					submitted = true;
+					int slot = reserve(query);
+					Runnable cancel = () -> {
+						// running search is not interrupted, it is finished and its result ignored
+						if(claimed.compareAndSet(false, true)) {
+							f.cancel(false);
+							req.close();
+						}
+					};
 				
-				for(int i=1; i < export.size(); i+=2) {
-					String toName = export.get(i-1);
-					String fromName = export.get(i);
-					query.response.add(toName, result.get(fromName));
+					int timeout = query.handler.getSubSearchTimeout();
+					query.addPending(() -> {
+						try {
+							f.get(timeout, TimeUnit.SECONDS);
+						}
+						catch(ExecutionException e) {
+							Throwable cause = e.getCause();
+							throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,cause.getMessage(), cause);
+						}
+						catch(CancellationException e) {
+							// cancelled by core close before it was started
+							cancel.run();
+							throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "Sub-search cancelled", e);
+						}
+						catch(TimeoutException e) {
+							cancel.run();
+							throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Sub-search timed out after " + timeout + "s", e);
+						}
+						catch(InterruptedException e) {
+							cancel.run();
+							Thread.currentThread().interrupt();
+							throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Interrupted", e);
+						}
+						export(query, rsp.getValues(), slot);
+					}, cancel);
+					return;
 				}
+				query.request.getCore().execute(query.handler, req, rsp);
+			}
+			catch(Exception e) {
+				throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,e.getMessage(), e);
 			}
 			
+			result = rsp.getValues();
+			collected = collectFields == null ? null : collect(result);
+			
+			// cached copy must not refer to the request, it is closed when done
+			if(cacheKey != null && rsp.getException() == null) {
+				cache.put(cacheKey, searcher, detach(result),
+						collected == null ? null : Collections.unmodifiableList((List<?>)collected));
+			}
+		} finally {
+			if(!submitted) req.close();
 		}
-		else {
-			if(collectFields != null) query.currentValue = result;
+		done(query, result, collected);
+	}
+	
+	/**
+	 * @return deep copy of the result for the cache: documents of ResultContext entries are read into
+	 * SolrDocumentList, so the copy does not depend on the request and its transformers. Nested
+	 * containers (NamedList, Map, List, documents) are copied as well, so the cached entry is not
+	 * changed by whoever modifies the response it was taken from or exported into.
+	 */
+	static NamedList<?> detach(NamedList<?> result) {
+		return (NamedList<?>) detachValue(result);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Object detachValue(Object val) {
+		if(val instanceof ResultContext) {
+			return toDocumentList((ResultContext)val);
+		}
+		if(val instanceof NamedList) {
+			// clone keeps the type, e.g. SimpleOrderedMap
+			NamedList<Object> copy = ((NamedList<Object>)val).clone();
+			for(int i=0; i < copy.size(); ++i) {
+				copy.setVal(i, detachValue(copy.getVal(i)));
+			}
+			return copy;
+		}
+		if(val instanceof SolrDocumentList) {
+			SolrDocumentList docs = (SolrDocumentList)val, copy = new SolrDocumentList();
+			copy.setNumFound(docs.getNumFound());
+			copy.setStart(docs.getStart());
+			copy.setMaxScore(docs.getMaxScore());
+			for(SolrDocument doc : docs) copy.add(detachDocument(doc));
+			return copy;
+		}
+		if(val instanceof SolrDocument) {
+			return detachDocument((SolrDocument)val);
 		}
-		if(collectFields != null) {
-			boolean singleField = collectFields.length == 1;
-			Object o = rsp.getValues().get("response");
+		if(val instanceof Map) {
+			Map<Object,Object> copy = new LinkedHashMap<>();
+			for(Map.Entry<?,?> e : ((Map<?,?>)val).entrySet()) copy.put(e.getKey(), detachValue(e.getValue()));
+			return copy;
+		}
+		if(val instanceof Collection) {
+			Collection<?> lst = (Collection<?>)val;
+			ArrayList<Object> copy = new ArrayList<>(lst.size());
+			for(Object v : lst) copy.add(detachValue(v));
+			return copy;
+		}
+		return val;
+	}
+	
+	private static SolrDocument detachDocument(SolrDocument doc) {
+		SolrDocument copy = new SolrDocument();
+		for(Map.Entry<String, Object> e : doc) copy.setField(e.getKey(), detachValue(e.getValue()));
+		if(doc.hasChildDocuments()) {
+			for(SolrDocument child : doc.getChildDocuments()) copy.addChildDocument(detachDocument(child));
+		}
+		return copy;
+	}
+	
+	static SolrDocumentList toDocumentList(ResultContext ctx) {
+		SolrDocumentList docs = new SolrDocumentList();
+		DocList lst = ctx.getDocList();
+		if(lst != null) {
+			docs.setNumFound(lst.matches());
+			docs.setStart(lst.offset());
+			if(lst.hasScores()) docs.setMaxScore(lst.maxScore());
+		}
+		Iterator<SolrDocument> itor = ctx.getProcessedDocuments();
+		while(itor.hasNext()) docs.add(itor.next());
+		return docs;
+	}
+	
+	/**
+	 * Passes sub-search result to the query: exports it into response and sets collected
+	 * values as current value.
+	 */
+	void done(QueryBuilder query, NamedList<?> result, Object collected) {
+		if(export != null) export(query, result);
+		if(collectFields != null) query.currentValue = collected;
+	}
+	
+	/**
+	 * @return list of collected field values (for single field) or maps of field values.
+	 */
+	List<Object> collect(NamedList<?> result) {
+		boolean singleField = collectFields.length == 1;
+		Object o = result.get("response");
+	
+		ArrayList<Object> lst = new ArrayList<>();
 		
-			ArrayList<Object> lst = new ArrayList<>();
-			
-			if(o != null && o instanceof ResultContext) {	
-				Iterator<SolrDocument> itor = ((ResultContext)o).getProcessedDocuments();
-				while(itor.hasNext()) {
-					SolrDocument doc = itor.next();
+		if(o != null && o instanceof ResultContext) {	
+			// values are read from index if possible, documents are processed otherwise
+			try {
+				List<Object> collected = collector.collect((ResultContext)o);
+				if(collected != null) return collected;
+			}
+			catch(IOException e) {
+				throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e.getMessage(), e);
+			}
+			Iterator<SolrDocument> itor = ((ResultContext)o).getProcessedDocuments();
+			while(itor.hasNext()) {
+				SolrDocument doc = itor.next();
+				
+				if(singleField) {
+					Object val = doc.get(collectFields[0]);
 					
-					if(singleField) {
-						Object val = doc.get(collectFields[0]);
-						
-						if(val != null) lst.add(val);
-					}
-					else {
-						HashMap<String,Object> map = new HashMap<>();
-						for(String fld : collectFields) {
-							Object val = doc.get(fld);
-							if(val != null) map.put(fld, val);
-						}
-						if(map.size() > 0) lst.add(map);
+					if(val != null) lst.add(val);
+				}
+				else {
+					HashMap<String,Object> map = new HashMap<>();
+					for(String fld : collectFields) {
+						Object val = doc.get(fld);
+						if(val != null) map.put(fld, val);
 					}
-				
+					if(map.size() > 0) lst.add(map);
 				}
+			
 			}
-			query.currentValue = lst;
 		}
+		return lst;
 	}
 
+	void export(QueryBuilder query, NamedList<?> result) {
+		export(query, result, reserve(query));
+	}
+	
+	/**
+	 * Adds response entries for exports with 'null' values.
+	 * 
+	 * @return index of the first entry.
+	 */
+	int reserve(QueryBuilder query) {
+		NamedList<?> values = query.response.getValues();
+		int slot = values.size();
+		if(export.size() == 1) query.response.add(export.get(0), null);
+		else {
+			for(int i=1; i < export.size(); i+=2) {
+				query.response.add(export.get(i-1), null);
+			}
+		}
+		return slot;
+	}
+	
+	/**
+	 * Sets exported values into entries reserved by {@link #reserve(QueryBuilder)}.
+	 */
+	@SuppressWarnings("unchecked")
+	void export(QueryBuilder query, NamedList<?> result, int slot) {
+		NamedList<Object> values = query.response.getValues();
+		if(export.size() == 1) values.setVal(slot, result);
+		else {
+			
+			for(int i=1; i < export.size(); i+=2) {
+				String fromName = export.get(i);
+				values.setVal(slot++, result.get(fromName));
+			}
+		}
+	}
+
+	/**
+	 * Executes sub-search in pool thread. The thread gets request info and logging context
+	 * of the calling thread, request (and so its searcher reference) is closed when done.
+	 * If the pool is busy, it is called by the request thread itself, which has its own request info.
+	 * 'done' (if any) is called after the search, while the request is still open.
+	 */
+	static void execute(QueryBuilder query, LocalSolrQueryRequest req, SolrQueryResponse rsp, Map<String,String> mdc,
+			Runnable done) {
+		Map<String,String> oldMdc = MDC.getCopyOfContextMap();
+		if(mdc != null) MDC.setContextMap(mdc);
+		boolean pooled = SolrRequestInfo.getRequestInfo() == null;
+		if(pooled) SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+		try {
+			query.request.getCore().execute(query.handler, req, rsp);
+			if(done != null) done.run();
+		}
+		finally {
+			if(pooled) SolrRequestInfo.clearRequestInfo();
+			req.close();
+			if(oldMdc != null) MDC.setContextMap(oldMdc);
+			else MDC.clear();
+		}
+	}
 }
@@ -0,0 +1,56 @@
+package dinom.solr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+public class BulkUpdateHandlerTest {
+
+	@Test
+	public void storedXml() throws Exception {
+		byte[] xml = "<doc>Risk</doc>".getBytes(StandardCharsets.UTF_8);
+		
+		try (Directory dir = new RAMDirectory()) {
+			try (IndexWriter w = new IndexWriter(dir, new IndexWriterConfig())) {
+				Document d = new Document();
+				d.add(new StoredField("id", "a1"));
+				d.add(new StoredField("xml", new String(xml, StandardCharsets.UTF_8)));
+				d.add(new StoredField("hash", "h1"));
+				w.addDocument(d);
+				
+				d = new Document();
+				d.add(new StoredField("num", 42L));
+				d.add(new StoredField("xml", new String(xml, StandardCharsets.UTF_8)));
+				w.addDocument(d);
+			}
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				BulkUpdateHandler.StoredXml doc = new BulkUpdateHandler.StoredXml("id", "xml", "hash");
+				
+				reader.document(0, doc.reset());
+				assertEquals("string key", "a1", doc.id);
+				assertArrayEquals("xml", xml, doc.xml);
+				assertEquals("hash", "h1", doc.hash);
+				
+				reader.document(1, doc.reset());
+				assertNull("no key", doc.id);
+				assertNull("no hash", doc.hash);
+				
+				doc = new BulkUpdateHandler.StoredXml("num", "xml", null);
+				reader.document(1, doc.reset());
+				assertEquals("numeric key", "42", doc.id);
+				assertArrayEquals("xml", xml, doc.xml);
+			}
+		}
+	}
+}
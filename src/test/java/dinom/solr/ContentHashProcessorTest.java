@@ -0,0 +1,35 @@
+package dinom.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+public class ContentHashProcessorTest {
+
+	@Test
+	public void stableHash() {
+		SolrInputDocument a = new SolrInputDocument(), b = new SolrInputDocument();
+		a.addField("id", "1");
+		a.addField("title", "Risk");
+		a.addField("tags", Arrays.asList("x", "y"));
+		b.addField("tags", Arrays.asList("x", "y"));
+		b.addField("title", "Risk");
+		b.addField("id", "1");
+		b.addField("hash", "old value");
+
+		String hash = ContentHashProcessor.hash(a, "hash");
+		assertEquals("length", 32, hash.length());
+		assertEquals("field order, hash field", hash, ContentHashProcessor.hash(b, "hash"));
+
+		b.setField("tags", Arrays.asList("y", "x"));
+		assertFalse("value order", hash.equals(ContentHashProcessor.hash(b, "hash")));
+
+		b.setField("tags", Arrays.asList("x", "y"));
+		b.setField("title", "Risk ");
+		assertFalse("value", hash.equals(ContentHashProcessor.hash(b, "hash")));
+	}
+}
@@ -9,6 +9,7 @@ import static org.junit.Assert.assertNull;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 
 public class ConversionTest {
@@ -112,5 +113,58 @@ public class ConversionTest {
 		assertEquals(k,"tag:\"1\" OR tag:\"2\" OR tag:\"3\" OR tag:\"title:hello\"",cv.apply(val));
 		assertEquals(k,"tag:\"title:hello\"",cv.apply("title:hello"));
 	}
+	
+	@Test
+	public void caseLocale() {
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			for(String spec : new String[] {"lowercase", "uppercase"}) {
+				cv = Conversion.parse(spec);
+				for(String v : new String[] {"TITLE", "title", "TİTLE ı"}) {
+					StringBuilder out = new StringBuilder();
+					cv.write(out, v);
+					
+					String exp = spec.equals("lowercase") ? v.toLowerCase(Locale.ROOT) : v.toUpperCase(Locale.ROOT);
+					assertEquals(spec+" "+v, exp, cv.apply(v));
+					assertEquals(spec+" "+v, exp, out.toString());
+				}
+			}
+		}
+		finally {
+			Locale.setDefault(locale);
+		}
+	}
+	
+	@Test
+	public void writeTests() {
+		List<Object> val = new ArrayList<>();
+		val.add("Title:Hello");
+		val.add(null);
+		val.add(2.0);
+		val.add("Say \"Hi\"");
+		
+		String[] specs = {
+				"escape", "quotes", "lowercase", "uppercase", "int", "string(before='(', after=')')",
+				"default(value='none')", "join(separator=' OR '),escape", "join(separator=',', prefix='[', postfix=']'),quotes",
+				"join(separator=' '),lowercase", "join", "lowercase,escape", "max(length='3')", "none",
+				"escape,lowercase", "quotes,uppercase", "quotes,escape", "escape,quotes", "string(before='<'),default(value='x')",
+				"default(value='x'),max(length='2')", "uppercase,join(separator='|')", "SolrDate", "SolrDate,string"
+		};
+		Object[] values = {"Title:Hello", "ÄBC def", "Say \"Hi\"", 2.0, null, val, "2020-01-02T03:04:05Z", "2020-01-02 03:04:05"};
+		
+		for(String spec : specs) {
+			cv = Conversion.parse(spec);
+			for(Object v : values) {
+				Object exp = cv.apply(v);
+				
+				StringBuilder out = new StringBuilder("~");
+				boolean written = cv.write(out, v);
+				
+				assertEquals(spec+" "+v, exp != null, written);
+				assertEquals(spec+" "+v, "~"+(exp == null ? "" : exp.toString()), out.toString());
+			}
+		}
+	}
 
 }
@@ -0,0 +1,48 @@
+package dinom.solr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class HtmlBatchTest {
+
+	@Test
+	public void orderTest() {
+		ArrayList<String> htmls = new ArrayList<>();
+		for(int i=0; i < 1000; ++i) {
+			htmls.add("<p class='x'>doc <b>" + i + "</b></p><script>skip()</script>");
+		}
+		List<String> texts = HtmlBatch.extractText(htmls);
+
+		assertEquals(htmls.size(), texts.size());
+		for(int i=0; i < texts.size(); ++i) {
+			assertEquals("Results are in order", "doc " + i, texts.get(i));
+		}
+
+		ArrayList<String> streamed = new ArrayList<>();
+		HtmlBatch.process(htmls.iterator(), 300, HtmlReader::new, HtmlReader::extractText,
+				ForkJoinPool.commonPool(), streamed::add);
+		assertEquals("Stream in batches", texts, streamed);
+	}
+
+	@Test
+	public void xmlTest() {
+		ArrayList<String> htmls = new ArrayList<>();
+		for(int i=0; i < 100; ++i) {
+			htmls.add("<P>x &amp; " + i + "<br>");
+		}
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			List<String> xml = HtmlBatch.toXml(htmls, Html2Xml::new, "doc", pool);
+
+			assertEquals("<doc><p>x &amp; 7<br/></p></doc>", xml.get(7));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -1,10 +1,24 @@
 package dinom.solr;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.junit.Test;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -31,4 +45,112 @@ public class HtmlReaderTest {
 
 	}
 
+	@Test
+	public void caseTest() throws IOException {
+		String html = "A<SCRIPT>var x = '<b>';</Script>B<Style>p {}</STYLE>C<!-- <p> -->D";
+
+		assertEquals("Scripts and styles in any case", "ABCD", Util.html2text(html));
+		assertEquals("Reader", "ABCD", new HtmlReader().extractText(new StringReader(html)));
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void unescapeTest() {
+		String[] samples = {
+			"a &amp; b", "&lt;p&gt;", "&nbsp;&copy;&thetasym;&euro;", "&#65;&#x42;&#X43;&#128512;",
+			"&unknown; & &; &#; &#x; &#12 &#1a; &amp", "tail &", "&&amp;&", "&#99999999999;"
+		};
+		for(String s : samples) {
+			assertEquals(s, StringEscapeUtils.unescapeHtml4(s), HtmlReader.unescape(s));
+		}
+		assertEquals("Entities in text", "a & b <c>", Util.html2text("<p>a &amp; b</p> &lt;c&gt;"));
+	}
+
+	@Test
+	public void saxTest() throws ParserConfigurationException, TransformerException {
+		String html = "Does <P class='c' id='my' Style=\"color:#000;\">it &amp; <br>that <b>work</B></p>? <i>open";
+
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		Element el = doc.createElement("html");
+		doc.appendChild(el);
+		new Html2Xml().convert(html, el, doc);
+
+		assertEquals("SAX events are the same as DOM", serialize(new DOMSource(doc)),
+				serialize(new Html2Xml().toSAXSource(html, "html")));
+	}
+
+	private static String serialize(Source src) throws TransformerException {
+		StringWriter out = new StringWriter();
+		Transformer t = TransformerFactory.newInstance().newTransformer();
+		t.setOutputProperty(OutputKeys.METHOD, "xml");
+		t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+		t.transform(src, new StreamResult(out));
+		return out.toString();
+	}
+
+	@Test
+	public void tagTest() {
+		String html = "<TD Class='x' STYLE=\"a: b\" class=y  data-Id = ' 7 '>";
+		HtmlReader reader = new HtmlReader();
+		reader.setText(html);
+		reader.next(0, html.length());
+
+		assertSame("Known name is shared", "td", reader.tag.getName());
+		assertEquals("Last of repeated attributes", "y", reader.tag.getAttr("class"));
+		assertEquals("Case of attribute name is ignored", "a: b", reader.tag.getAttr("style"));
+		assertEquals("Trimmed value", "7", reader.tag.getAttr("DATA-ID"));
+		assertNull(reader.tag.getAttr("id"));
+	}
+
+	@Test
+	public void rulesTest() {
+		String html = "<nav><ul><li>Home</li></ul></nav><div class='main'>Text <IMG src='x'> "
+				+ "<div class=\"side menu\"><div>Links</div><svg><g/></svg></div>end</div>"
+				+ "<svg><text>drawing</text></svg><footer id=foot>Footer</footer>";
+
+		assertEquals("Tags", "Text  LinksendFooter",
+				Util.html2text(html, "tags=nav, svg ,img"));
+		assertEquals("Class and id", "Text  end",
+				Util.html2text(html, "tags=nav,svg;class=\\bmenu\\b;id=^foot$"));
+		assertEquals("Max depth", "Text  end",
+				Util.html2text(html, "tags=nav,svg,footer;maxDepth=1"));
+		assertEquals("Max length", "Text  Li",
+				Util.html2text(html, "tags=nav;maxLength=8"));
+		assertSame("Parsed once", HtmlReader.Rules.of("maxLength=8"), HtmlReader.Rules.of("maxLength=8"));
+		assertNull(HtmlReader.Rules.of(" "));
+	}
+
+	@Test
+	public void depthTest() {
+		// optional end tags are implied, stray end tags do not change depth
+		StringBuilder html = new StringBuilder("<div><ul>");
+		for(int i=0; i < 10; ++i) {
+			html.append("<li>item ").append(i).append("<p>para</span>");
+		}
+		html.append("</ul><p>last</div><p>after");
+
+		assertEquals("Unclosed li and p", "item 0paraitem 1para", 
+				Util.html2text(html.toString(), "maxDepth=4;maxLength=20"));
+		assertEquals("Depth after unclosed elements", "after",
+				Util.html2text(html.toString(), "maxDepth=1;tags=div"));
+		assertEquals("Deep elements skipped", "last",
+				Util.html2text("<div><p>last<table><tr><td>a<tr><td>b</table></div>", "maxDepth=2"));
+		assertEquals("Implied cells and rows", "ab",
+				Util.html2text("<table><tr><td>a<td>b<tr><td>", "maxDepth=3"));
+		// skipped element ends with an enclosing element or where its end is implied
+		assertEquals("Skipped rows end with table", "after",
+				Util.html2text("<table><tr><td>a<tr><td>b</table>after", "maxDepth=1"));
+		assertEquals("Skipped item ends at next item", "AboutBody text",
+				Util.html2text("<ul><li class=menu>Home<li>About</ul><p>Body text", "class=menu"));
+		assertEquals("End tag with space", "abc",
+				Util.html2text("<div>a</div >b<div>c", "maxDepth=1"));
+		assertEquals("Script in skipped element", "ab",
+				Util.html2text("<div>a<nav><script>x('</p>')</script>menu</nav>b</div>", "tags=nav"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownRuleTest() {
+		HtmlReader.Rules.of("tag=nav");
+	}
+
 }
@@ -0,0 +1,86 @@
+package dinom.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import dinom.solr.op.Param;
+import dinom.solr.op.Query;
+
+public class SearchModelTest {
+	final static String MODEL = "<model>"
+			+ "<_open_><set name='rows' value='10'/></_open_>"
+			+ "<query><q>title:${value:escape}</q></query>"
+			+ "<rows><set name='rows'>${value:int}</set></rows>"
+			+ "<start><set name='start'>${value:int}</set></start>"
+			+ "<page><set name='page'>${value:int}</set></page>"
+			+ "<sortBy><relevance value='score desc'/></sortBy>"
+			+ "</model>";
+
+	static SearchModel parse(String xml) throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+				new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+		return new SearchModel(doc);
+	}
+
+	@Test
+	public void operators() throws Exception {
+		SearchModel model = parse(MODEL);
+
+		assertTrue("_open_", model.onopen instanceof Param);
+		assertTrue("query", model.get("query") instanceof Query);
+		assertEquals("declaration order", Arrays.asList("query", "rows", "start", "page", "sortBy"),
+				new ArrayList<>(model.model.keySet()));
+		assertNull("predefined", model.get("_open_"));
+		assertNull("undefined", model.get("unknown"));
+
+		SearchModel copy = new SearchModel(model);
+		assertEquals("copy", model.model.keySet(), copy.model.keySet());
+		assertTrue("copy", copy.get("rows") == model.get("rows"));
+	}
+
+	@Test
+	public void readJson() throws Exception {
+		SearchModel model = parse(MODEL);
+
+		Map<String,Object> json = CustomSearchHandler.readJson(new StringReader(
+				"{\"query\": {\"text\": \"a b\", \"fields\": [\"x\", {\"y\": [1, 2.5, true, null]}]},"
+				+ " \"rows\": 10, \"__parent\": \"p\"} "), model);
+
+		assertEquals("keys in request order", Arrays.asList("query", "rows", "__parent"), new ArrayList<>(json.keySet()));
+		assertEquals("nested values", "{text=a b, fields=[x, {y=[1, 2.5, true, null]}]}", json.get("query").toString());
+		assertEquals(10L, json.get("rows"));
+
+		String[] malformed = {
+			"{\"rows\": 10} x",
+			"{\"rows\": 10}{\"start\": 0}",
+			"{\"rows\": 10",
+			"{\"rows\" 10}",
+			"[\"rows\"]",
+			"{\"unknown\": 1}"
+		};
+		for(String s : malformed) {
+			try {
+				CustomSearchHandler.readJson(new StringReader(s), model);
+				fail("Accepted: " + s);
+			}
+			catch(SolrException e) {
+				assertEquals(s, SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package dinom.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+public class SearchResultCacheTest {
+
+	@Test
+	public void searcherInvalidation() {
+		SearchResultCache cache = new SearchResultCache("featured", 2);
+		Object s1 = new Object(), s2 = new Object();
+		NamedList<Object> result = new NamedList<>();
+
+		assertNull("miss", cache.get("a", s1));
+		cache.put("a", s1, result, Arrays.asList("1", "2"));
+		assertTrue("hit", cache.get("a", s1).getResult() == result);
+		assertEquals("collected", Arrays.asList("1", "2"), cache.get("a", s1).getCollected());
+
+		// result of previous searcher is not put after new one is seen
+		assertNull("new searcher", cache.get("a", s2));
+		cache.put("b", s1, result, null);
+		assertEquals("size", 0, cache.size());
+
+		cache.put("a", s2, result, null);
+		cache.put("b", s2, result, null);
+		cache.get("a", s2);
+		cache.put("c", s2, result, null);
+		assertNull("evicted", cache.get("b", s2));
+
+		Map<String,Object> stats = new HashMap<>();
+		cache.getStats(stats);
+		assertEquals("hits", 3L, stats.get("featured.hits"));
+		assertEquals("misses", 3L, stats.get("featured.misses"));
+		assertEquals("evictions", 1L, stats.get("featured.evictions"));
+		assertEquals("invalidations", 1L, stats.get("featured.invalidations"));
+	}
+}
@@ -77,5 +77,65 @@ public class TemplateTest {
 		
 		
 	}
+	
+	@Test
+	public void writeTest() {
+		tmpl = Template.compile("date:[${from:SolrDate} TO ${to:SolrDate}] AND ${value:escape}");
+		
+		map = new HashMap<>();
+		map.put("from", "2017-10-28T22:10:01Z");
+		map.put("to", "*");
+		map.put("value", "a:b");
+		
+		StringBuilder out = new StringBuilder("fq=");
+		tmpl.write(out, map);
+		assertEquals("Template.write", "fq=date:[2017-10-28T22:10:01Z TO *] AND a\\:b", out.toString());
+		
+		// not a map value is 'value' variable
+		assertEquals("Template.MapValue", "date:[ TO ] AND x\\ y", tmpl.apply("x y"));
+		
+		// nested apply does not damage outer rendering
+		Template inner = Template.compile("<${value:uppercase}>");
+		Template outer = new Template() {
+			@Override
+			public void write(StringBuilder out, Object val) {
+				out.append("[");
+				out.append(inner.apply(val));
+				out.append("]");
+			}
+		};
+		assertEquals("Template.apply nested", "[<ABC>]", outer.apply("abc"));
+		assertEquals("Template.apply nested", "[<DEF>]", outer.apply("def"));
+	}
+	
+	@Test
+	public void sharedTest() {
+		s = "title:${value:lowercase,escape}";
+		assertTrue("not shared", Template.compile(s) != Template.compile(s));
+		
+		Boolean old = TemplateCache.setEnabled(true);
+		try {
+			tmpl = Template.compile(s);
+			assertTrue("shared", tmpl == Template.compile(s));
+			assertEquals("shared", "title:a\\:b", tmpl.apply("A:B"));
+			
+			Conversion cv = Conversion.parse("int");
+			assertTrue("shared conversion", cv == Conversion.parse("int"));
+			assertTrue("default type", Template.compile("${value}", cv) == Template.compile("${value}", Conversion.parse("int")));
+			assertTrue("default type", Template.compile("${value}", cv) != Template.compile("${value}", Conversion.parse("escape")));
+			
+			// least recently used entries are evicted
+			TemplateCache.clear();
+			cv = Conversion.parse("max(length='0')");
+			for(int i=1; i <= TemplateCache.MAX_SIZE; ++i) {
+				Conversion.parse("max(length='" + i + "')");
+			}
+			assertEquals("bounded", TemplateCache.MAX_SIZE, TemplateCache.size());
+			assertTrue("evicted", cv != Conversion.parse("max(length='0')"));
+		}
+		finally {
+			TemplateCache.setEnabled(old);
+		}
+	}
 
 }
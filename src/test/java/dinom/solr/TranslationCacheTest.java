@@ -0,0 +1,72 @@
+package dinom.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TranslationCacheTest {
+
+	@Test
+	public void canonicalKey() {
+		Map<String,Object> a = new LinkedHashMap<>(), b = new LinkedHashMap<>(), fa = new HashMap<>(), fb = new HashMap<>();
+		fa.put("type", "news");
+		fa.put("date", "2017");
+		fb.put("date", "2017");
+		fb.put("type", "news");
+
+		a.put("query", "risk");
+		a.put("filters", fa);
+		a.put("tags", Arrays.asList("x", "y\""));
+		b.put("tags", Arrays.asList("x", "y\""));
+		b.put("filters", fb);
+		b.put("query", "risk");
+
+		assertEquals("key order", TranslationCache.key(a), TranslationCache.key(b));
+		assertEquals("format", "{\"filters\":{\"date\":\"2017\",\"type\":\"news\"},\"query\":\"risk\",\"tags\":[\"x\",\"y\\\"\"]}",
+				TranslationCache.key(a));
+
+		b.put("tags", Arrays.asList("y\"", "x"));
+		assertFalse("list order", TranslationCache.key(a).equals(TranslationCache.key(b)));
+	}
+
+	@Test
+	public void lruAndStats() {
+		TranslationCache cache = new TranslationCache(2);
+		Map<String,Object> json = new HashMap<>();
+
+		QueryBuilder xq = new QueryBuilder();
+		xq.setQuery("title:risk");
+		xq.addFilterQuery("type:news", "year:2017");
+		cache.put("a", xq);
+
+		QueryBuilder copy = cache.get("a", null, null, null, json);
+		assertEquals("q", "title:risk", copy.getQuery());
+		assertEquals("fq", 2, copy.getFilterQueries().length);
+		assertEquals("json", json, copy.getJSON());
+
+		// the copy is independent from cached entry
+		copy.setQuery("changed");
+		assertEquals("q", "title:risk", cache.get("a", null, null, null, json).getQuery());
+
+		assertNull("miss", cache.get("b", null, null, null, json));
+		cache.put("b", xq);
+		cache.get("a", null, null, null, json);
+		cache.put("c", xq);  // evicts 'b', as 'a' is more recently used
+
+		assertNull("evicted", cache.get("b", null, null, null, json));
+		assertEquals("size", 2, cache.size());
+		assertEquals("hits", 3, cache.getHits());
+		assertEquals("misses", 2, cache.getMisses());
+		assertEquals("evictions", 1, cache.getEvictions());
+
+		cache.clear();
+		assertNull("cleared", cache.get("a", null, null, null, json));
+	}
+}
@@ -1,5 +1,7 @@
 package dinom.solr;
 
+import java.nio.charset.StandardCharsets;
+
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
@@ -18,4 +20,14 @@ public class UtilTest {
         assertEquals("research-and-development/key-initiative/r&d-portfolio-management",
                 Util.toTagId("Research and Development: R&D Portfolio Management", ": ", "/key-initiative/"));
     }
+
+    @Test
+    public void testBytesIndexOf(){
+        byte[] src = "<doc><title>Café risk</title></doc>".getBytes(StandardCharsets.UTF_8);
+        assertEquals(5, Util.indexOf(src, "<title>".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(12, Util.indexOf(src, "Café".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(-1, Util.indexOf(src, "cafe".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(-1, Util.indexOf(src, "</doc>!".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, Util.indexOf(src, new byte[0]));
+    }
 }
@@ -0,0 +1,97 @@
+package dinom.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+public class XsltUpdateHandlerTest {
+
+	static final String DOCUMENT_XSL = "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+			+ "<xsl:output method='text'/><xsl:param name='p' select=\"'none'\"/>"
+			+ "<xsl:template match='/'><xsl:value-of select=\"document('res:a')/v\"/>|<xsl:value-of select='$p'/></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	@Test
+	public void reusedTransformer() throws Exception {
+		TransformerFactory tf = TransformerFactory.newInstance();
+		tf.setURIResolver((href, base) -> new StreamSource(new StringReader("<v>" + href + "</v>")));
+		Templates templates = tf.newTemplates(new StreamSource(new StringReader(DOCUMENT_XSL)));
+
+		XsltUpdateHandler.Loader loader = new XsltUpdateHandler.Loader(null);
+		loader.templates = templates;
+		Transformer t = templates.newTransformer();
+		t.setParameter("p", "first");
+		assertEquals("res:a|first", transform(t));
+		
+		loader.release(t, templates);
+		Transformer reused = loader.pool.poll();
+		assertSame("pooled", t, reused);
+		assertEquals("resolver kept, parameters cleared", "res:a|none", transform(reused));
+	}
+
+	static final String DC = "http://purl.org/dc/elements/1.1/";
+	static final String FEED = "<?xml version='1.0'?><feed xmlns='urn:feed' xmlns:dc='" + DC + "'><title>Feed</title>"
+			+ "<entry dc:lang='en'><id>1</id><dc:creator>Ann</dc:creator></entry>"
+			+ "<entry><id>2</id><dc:creator>Bob</dc:creator></entry>"
+			+ "</feed>";
+
+	@Test
+	public void splitFeed() throws Exception {
+		List<Element> records = new ArrayList<>();
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		
+		int count = XsltUpdateHandler.Loader.split(feed(), null, "entry", "feed.xml", (xml, number) -> {
+			// a record is a standalone document, namespaces of the feed are declared in it
+			records.add(factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml)).getDocumentElement());
+		});
+		assertEquals("records", 2, count);
+		assertEquals(2, records.size());
+		String[] creators = {"Ann", "Bob"};
+		for(int i=0; i < records.size(); ++i) {
+			Element e = records.get(i);
+			assertEquals("default namespace", "urn:feed", e.getNamespaceURI());
+			assertEquals("entry", e.getLocalName());
+			assertEquals("prefixed element", creators[i], e.getElementsByTagNameNS(DC, "creator").item(0).getTextContent());
+		}
+		assertEquals("prefixed attribute", "en", records.get(0).getAttributeNS(DC, "lang"));
+		
+		try {
+			XsltUpdateHandler.Loader.split(feed(), "UTF-8", "entry", "feed.xml", (xml, number) -> {
+				if(number == 2) throw new IllegalStateException("bad record");
+			});
+			fail("failed record");
+		}
+		catch(SolrException e) {
+			assertEquals("Failed record 2 of feed.xml: bad record", e.getMessage());
+		}
+	}
+
+	private static ByteArrayInputStream feed() {
+		return new ByteArrayInputStream(FEED.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String transform(Transformer t) throws Exception {
+		StringWriter out = new StringWriter();
+		t.transform(new StreamSource(new StringReader("<r/>")), new StreamResult(out));
+		return out.toString();
+	}
+}